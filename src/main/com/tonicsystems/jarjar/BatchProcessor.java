@@ -0,0 +1,167 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.tonicsystems.jarjar.util.EntryCache;
+import com.tonicsystems.jarjar.util.StandaloneJarProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Processes several jars with the same rules in one JVM.
+ *
+ * <p>The rules are compiled once and their {@link RuleSet} is shared by every jar, so names mapped
+ * for one jar are already cached for the next. Jars are processed concurrently, each on a single
+ * thread of a shared pool, and a failing jar does not stop the others.
+ */
+final class BatchProcessor {
+  /** A single jar to process. */
+  static final class Job {
+    final File from;
+    final File to;
+
+    Job(File from, File to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public String toString() {
+      return from + " -> " + to;
+    }
+  }
+
+  private final RuleSet rules;
+  private final boolean skipManifest;
+  private final MainProcessor.Engine engine;
+  private final int threads;
+  private final StandaloneJarProcessor.Options options;
+  private final EntryCache cache;
+
+  /**
+   * @param options applied to each jar, except that every jar is processed on a single thread and
+   *     the memory budget is split between the jars processed at the same time
+   * @param cache a cache of processed entries shared by all the jars, or null for none
+   */
+  BatchProcessor(
+      RuleSet rules,
+      boolean skipManifest,
+      MainProcessor.Engine engine,
+      StandaloneJarProcessor.Options options,
+      EntryCache cache) {
+    this.rules = rules;
+    this.cache = cache;
+    this.skipManifest = skipManifest;
+    this.engine = engine;
+    this.threads = options.getThreads();
+    this.options =
+        new StandaloneJarProcessor.Options()
+            .setThreads(1)
+            .setMemoryBudget(options.getMemoryBudget() / threads)
+            .setOffHeap(options.isOffHeap())
+            .setCompression(options.getCompression())
+            .setIncremental(options.isIncremental());
+  }
+
+  /**
+   * Reads jobs from a file with one per line, the input and output jars separated by whitespace.
+   * Blank lines and lines starting with "#" are ignored. Relative paths are relative to the
+   * directory of the file, wherever it is read from.
+   */
+  static List<Job> readJobs(File listFile) throws IOException {
+    File dir = listFile.getAbsoluteFile().getParentFile();
+    List<Job> jobs = new ArrayList<>();
+    int lineNumber = 0;
+    for (String line : Files.readAllLines(listFile.toPath(), UTF_8)) {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] parts = line.split("\\s+");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException(
+            "Expected <inJar> <outJar> on line " + lineNumber + " of " + listFile + ": " + line);
+      }
+      jobs.add(new Job(resolve(dir, parts[0]), resolve(dir, parts[1])));
+    }
+    return jobs;
+  }
+
+  private static File resolve(File dir, String path) {
+    File file = new File(path);
+    return file.isAbsolute() ? file : new File(dir, path);
+  }
+
+  /**
+   * Processes every job, returning the failures in the order of the jobs. Jobs that are not in
+   * the result succeeded.
+   */
+  Map<Job, Exception> run(List<Job> jobs) {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (Job job : jobs) {
+        futures.add(
+            pool.submit(
+                () -> {
+                  MainProcessor proc = new MainProcessor(rules, skipManifest, engine);
+                  proc.setCache(cache);
+                  StandaloneJarProcessor.run(job.from, job.to, proc, options);
+                  return null;
+                }));
+      }
+
+      Map<Job, Exception> failures = new LinkedHashMap<>();
+      boolean interrupted = false;
+      for (int i = 0; i < jobs.size(); i++) {
+        while (true) {
+          try {
+            futures.get(i).get();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+              throw (Error) cause;
+            }
+            failures.put(jobs.get(i), (Exception) cause);
+            break;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return failures;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the commands of {@link Main} in a long-lived JVM, so that short runs do not pay for JVM
+ * startup, class loading and a cold JIT, and rules that are used again are already compiled.
+ *
+ * <p>The daemon listens on a loopback port, which it writes to a state file along with a random
+ * token. The state file is only readable by its owner, and requests without the token are ignored,
+ * so that other users of the machine cannot have the daemon read or write files. A client that does
+ * not send its request within a few seconds is disconnected, and a bounded number of requests are
+ * served at once.
+ *
+ * <p>A request holds the token, the working directory of the client, the properties of {@link
+ * Main#PROPERTIES} that the client has set, and the command line. The response is a sequence of
+ * frames, each a type byte and a length followed by that many bytes for {@link #STDOUT} and {@link
+ * #STDERR}, ending with an {@link #EXIT} frame holding the exit status.
+ */
+final class Daemon {
+  private static final int MAGIC = 0x4A4A4401; // "JJD" and the protocol version
+  private static final int EXIT = 0;
+  private static final int STDOUT = 1;
+  private static final int STDERR = 2;
+  private static final int TOKEN_LENGTH = 32;
+  private static final int MAX_RULE_SETS = 16;
+  // Connections beyond what the threads and the queue can take are closed right away, and a
+  // client gets this long to send its request, so that idle connections cannot hold threads
+  private static final int MAX_THREADS = 16;
+  private static final int MAX_QUEUED = 64;
+  private static final int REQUEST_TIMEOUT_MILLIS = 10_000;
+
+  /** Returns the state file at {@code path}, or the default one if {@code path} is empty. */
+  static File stateFile(String path) {
+    if (path.isEmpty()) {
+      return new File(System.getProperty("user.home"), ".jarjar-daemon");
+    }
+    return new File(path);
+  }
+
+  /** Serves requests until the JVM is stopped, logging to {@code log}. */
+  static void serve(File stateFile, PrintStream log) throws IOException {
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      serve(server, stateFile, log);
+    }
+  }
+
+  /** Serves requests on {@code server} until it is closed or the JVM is stopped. */
+  static void serve(ServerSocket server, File stateFile, PrintStream log) throws IOException {
+    byte[] token = new byte[TOKEN_LENGTH];
+    new SecureRandom().nextBytes(token);
+    String state = server.getLocalPort() + " " + toHex(token) + "\n";
+
+    // The least recently used rules are dropped, along with what their remapper cached
+    Map<String, RuleSet> ruleSets =
+        Collections.synchronizedMap(
+            new LinkedHashMap<String, RuleSet>(MAX_RULE_SETS, 0.75f, true) {
+              private static final long serialVersionUID = 0L;
+
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String, RuleSet> eldest) {
+                return size() > MAX_RULE_SETS;
+              }
+            });
+    ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(
+            MAX_THREADS,
+            MAX_THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED),
+            (r) -> {
+              Thread thread = new Thread(r, "jarjar-daemon");
+              thread.setDaemon(true);
+              return thread;
+            });
+    pool.allowCoreThreadTimeOut(true);
+
+    Thread cleanup = new Thread(() -> deleteState(stateFile, state));
+    Runtime.getRuntime().addShutdownHook(cleanup);
+    try {
+      writeState(stateFile, state);
+      log.println("Listening on port " + server.getLocalPort() + ", see " + stateFile);
+      while (true) {
+        Socket socket;
+        try {
+          socket = server.accept();
+        } catch (SocketException e) {
+          if (server.isClosed()) {
+            return;
+          }
+          throw e;
+        }
+        try {
+          pool.execute(() -> handle(socket, token, ruleSets, log));
+        } catch (RejectedExecutionException e) {
+          log.println("Too many connections, closing one");
+          socket.close();
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+      try {
+        Runtime.getRuntime().removeShutdownHook(cleanup);
+      } catch (IllegalStateException e) {
+        // Already shutting down, so the hook does it
+      }
+      deleteState(stateFile, state);
+    }
+  }
+
+  private static void handle(
+      Socket socket, byte[] token, Map<String, RuleSet> ruleSets, PrintStream log) {
+    try (Socket s = socket) {
+      s.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+      if (in.readInt() != MAGIC) {
+        return;
+      }
+      byte[] clientToken = new byte[TOKEN_LENGTH];
+      in.readFully(clientToken);
+      if (!MessageDigest.isEqual(token, clientToken)) {
+        return;
+      }
+      File dir = new File(in.readUTF());
+      Properties properties = new Properties();
+      for (int i = in.readInt(); i > 0; i--) {
+        properties.setProperty(in.readUTF(), in.readUTF());
+      }
+      List<String> args = new ArrayList<>();
+      for (int i = in.readInt(); i > 0; i--) {
+        args.add(in.readUTF());
+      }
+      s.setSoTimeout(0); // the command may take as long as it needs
+
+      PrintStream stdout = new PrintStream(new FrameOutputStream(out, STDOUT));
+      PrintStream stderr = new PrintStream(new FrameOutputStream(out, STDERR));
+      int status = 0;
+      try {
+        new Main(properties, stdout, stderr, dir, ruleSets).run(args);
+      } catch (Exception e) {
+        e.printStackTrace(stderr);
+        status = 1;
+      }
+      stdout.flush();
+      stderr.flush();
+      synchronized (out) {
+        out.writeByte(EXIT);
+        out.writeInt(status);
+        out.flush();
+      }
+    } catch (IOException e) {
+      log.println("Failed to serve a request: " + e);
+    }
+  }
+
+  /**
+   * Runs {@code args} in the daemon described by {@code stateFile}, copying its output to {@code
+   * stdout} and {@code stderr}.
+   *
+   * @return the exit status of the command
+   */
+  static int forward(
+      File stateFile,
+      List<String> args,
+      Properties properties,
+      PrintStream stdout,
+      PrintStream stderr)
+      throws IOException {
+    String[] state;
+    try {
+      state = new String(Files.readAllBytes(stateFile.toPath()), UTF_8).trim().split(" ");
+    } catch (NoSuchFileException e) {
+      throw new IOException("No daemon is running, see " + stateFile);
+    }
+    if (state.length != 2 || state[1].length() != TOKEN_LENGTH * 2) {
+      throw new IOException("Not a daemon state file: " + stateFile);
+    }
+    int port = Integer.parseInt(state[0]);
+    byte[] token = fromHex(state[1]);
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      out.writeInt(MAGIC);
+      out.write(token);
+      out.writeUTF(new File("").getAbsolutePath());
+      List<String> names = new ArrayList<>();
+      for (String name : Main.PROPERTIES) {
+        if (properties.getProperty(name) != null) {
+          names.add(name);
+        }
+      }
+      out.writeInt(names.size());
+      for (String name : names) {
+        out.writeUTF(name);
+        out.writeUTF(properties.getProperty(name));
+      }
+      out.writeInt(args.size());
+      for (String arg : args) {
+        out.writeUTF(arg);
+      }
+      out.flush();
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      byte[] buffer = new byte[8192];
+      while (true) {
+        int type = in.read();
+        if (type < 0) {
+          throw new EOFException("The daemon closed the connection");
+        }
+        int length = in.readInt();
+        if (type == EXIT) {
+          stdout.flush();
+          stderr.flush();
+          return length;
+        }
+        PrintStream target = (type == STDOUT) ? stdout : stderr;
+        while (length > 0) {
+          int n = Math.min(length, buffer.length);
+          in.readFully(buffer, 0, n);
+          target.write(buffer, 0, n);
+          length -= n;
+        }
+      }
+    }
+  }
+
+  /** Writes the state file so that it is only ever readable by its owner. */
+  private static void writeState(File stateFile, String state) throws IOException {
+    Path target = stateFile.getAbsoluteFile().toPath();
+    Files.createDirectories(target.getParent());
+    Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+    Files.deleteIfExists(temp);
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      Files.createFile(
+          temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } else {
+      Files.createFile(temp);
+    }
+    try {
+      Files.write(temp, state.getBytes(UTF_8));
+      try {
+        Files.move(
+            temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /** Deletes the state file, unless another daemon has replaced it since. */
+  private static void deleteState(File stateFile, String state) {
+    try {
+      if (new String(Files.readAllBytes(stateFile.toPath()), UTF_8).equals(state)) {
+        Files.delete(stateFile.toPath());
+      }
+    } catch (IOException e) {
+      // Already gone
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  private static byte[] fromHex(String hex) throws IOException {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(hex.charAt(i * 2), 16);
+      int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IOException("Bad token in the daemon state file");
+      }
+      bytes[i] = (byte) ((high << 4) | low);
+    }
+    return bytes;
+  }
+
+  /** Sends what is written to it as frames of one type, buffered to keep frames large. */
+  private static final class FrameOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final int type;
+    private final byte[] buffer = new byte[8192];
+    private int count;
+
+    FrameOutputStream(DataOutputStream out, int type) {
+      this.out = out;
+      this.type = type;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == buffer.length) {
+        flushBuffer();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len > buffer.length - count) {
+        flushBuffer();
+      }
+      if (len >= buffer.length) {
+        writeFrame(b, off, len);
+      } else {
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      flushBuffer();
+      synchronized (out) {
+        out.flush();
+      }
+    }
+
+    private void flushBuffer() throws IOException {
+      if (count > 0) {
+        writeFrame(buffer, 0, count);
+        count = 0;
+      }
+    }
+
+    private void writeFrame(byte[] b, int off, int len) throws IOException {
+      synchronized (out) {
+        out.writeByte(type);
+        out.writeInt(len);
+        out.write(b, off, len);
+      }
+    }
+  }
+
+  private Daemon() {}
+}
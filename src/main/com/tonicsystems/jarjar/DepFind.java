@@ -61,16 +61,13 @@ public class DepFind {
       try {
         while (cp.hasNext()) {
           ClassPathEntry entry = cp.next();
-          InputStream in = entry.openStream();
           try {
-            new ClassReader(in)
+            new ClassReader(entry.readAllBytes())
                 .accept(
                     new DepFindVisitor(classes, entry.getSource(), handler),
                     ClassReader.SKIP_DEBUG);
           } catch (Exception e) {
             System.err.println("Error reading " + entry.getName() + ": " + e.getMessage());
-          } finally {
-            in.close();
           }
         }
       } finally {
@@ -32,9 +32,14 @@ class ExcludeProcessor implements JarProcessor {
 
   @Override
   public boolean process(EntryStruct struct) throws IOException {
-    boolean toKeep = !excludes.contains(struct.name);
+    return accepts(struct.name);
+  }
+
+  @Override
+  public boolean accepts(String name) {
+    boolean toKeep = !excludes.contains(name);
     if (verbose && !toKeep) {
-      System.err.println("Excluding " + struct.name);
+      System.err.println("Excluding " + name);
     }
     return toKeep;
   }
@@ -29,6 +29,15 @@ public class JarJarMojo extends AbstractMojo {
   private File rulesFile;
   private String rules;
   private boolean verbose;
+  private int threads = 1;
+  private long memoryBudget = Long.MAX_VALUE;
+  private boolean offHeap;
+  private int writeAhead;
+  private String engine = "asm";
+  private String compression = "default";
+  private File cacheDirectory;
+  private long cacheSize = 1L << 30;
+  private boolean incremental;
 
   public void execute() throws MojoExecutionException {
     if (!((rulesFile == null || !rulesFile.exists()) ^ (rules == null))) {
@@ -43,9 +52,23 @@ public class JarJarMojo extends AbstractMojo {
         patterns = RulesFileParser.parse(rulesFile);
       }
       // TODO: refactor with Main.java
-      MainProcessor proc = new MainProcessor(patterns, verbose, true);
-      StandaloneJarProcessor.run(fromJar, toJar, proc);
-      proc.strip(toJar);
+      MainProcessor proc =
+          new MainProcessor(patterns, verbose, true, MainProcessor.Engine.parse(engine));
+      try (EntryCache cache =
+          (cacheDirectory != null) ? new EntryCache(cacheDirectory, cacheSize) : null) {
+        proc.setCache(cache);
+        StandaloneJarProcessor.Options options =
+            new StandaloneJarProcessor.Options()
+                .setThreads(threads)
+                .setMemoryBudget(memoryBudget)
+                .setOffHeap(offHeap)
+                .setCompression(StandaloneJarProcessor.Compression.parse(compression))
+                .setIncremental(incremental);
+        if (writeAhead > 0) {
+          options.setWriteAhead(writeAhead);
+        }
+        StandaloneJarProcessor.run(fromJar, toJar, proc, options);
+      }
     } catch (IOException e) {
       throw new MojoExecutionException(e.getMessage(), e);
     }
@@ -17,12 +17,57 @@
 package com.tonicsystems.jarjar;
 
 import com.tonicsystems.jarjar.util.*;
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.zip.Deflater;
 import org.apache.tools.ant.BuildException;
 
 public class JarJarTask extends AntJarProcessor {
   private List<PatternElement> patterns = new ArrayList<PatternElement>();
+  private MainProcessor.Engine engine = MainProcessor.Engine.ASM;
+  private File cacheDir;
+  private long cacheSize = DEFAULT_CACHE_SIZE;
+
+  private static final long DEFAULT_CACHE_SIZE = 1L << 30;
+
+  public void setEngine(String engine) {
+    this.engine = MainProcessor.Engine.parse(engine);
+  }
+
+  /**
+   * Sets how entries are compressed, like the command line. This is a shorthand for the "compress"
+   * and "level" attributes of the jar task.
+   */
+  public void setCompression(String compression) {
+    switch (StandaloneJarProcessor.Compression.parse(compression)) {
+      case STORED:
+        setCompress(false);
+        break;
+      case FAST:
+        setCompress(true);
+        setLevel(Deflater.BEST_SPEED);
+        break;
+      case DEFAULT:
+        setCompress(true);
+        setLevel(Deflater.DEFAULT_COMPRESSION);
+        break;
+      case MAX:
+        setCompress(true);
+        setLevel(Deflater.BEST_COMPRESSION);
+        break;
+    }
+  }
+
+  /** Sets a directory of processed entries to reuse across builds. */
+  public void setCacheDir(File cacheDir) {
+    this.cacheDir = cacheDir;
+  }
+
+  /** Sets how many bytes of processed entries to keep in the cache directory. */
+  public void setCacheSize(long cacheSize) {
+    this.cacheSize = cacheSize;
+  }
 
   public void addConfiguredRule(Rule rule) {
     if (rule.getPattern() == null || rule.getResult() == null) {
@@ -47,9 +92,10 @@ public class JarJarTask extends AntJarProcessor {
   }
 
   public void execute() throws BuildException {
-    MainProcessor proc = new MainProcessor(patterns, verbose, false);
-    execute(proc);
-    try {
+    MainProcessor proc = new MainProcessor(patterns, verbose, false, engine);
+    try (EntryCache cache = (cacheDir != null) ? new EntryCache(cacheDir, cacheSize) : null) {
+      proc.setCache(cache);
+      execute(proc);
       proc.strip(getDestFile());
     } catch (IOException e) {
       throw new BuildException(e);
@@ -59,5 +105,8 @@ public class JarJarTask extends AntJarProcessor {
   protected void cleanHelper() {
     super.cleanHelper();
     patterns.clear();
+    engine = MainProcessor.Engine.ASM;
+    cacheDir = null;
+    cacheSize = DEFAULT_CACHE_SIZE;
   }
 }
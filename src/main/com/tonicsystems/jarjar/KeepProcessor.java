@@ -16,38 +16,39 @@
 
 package com.tonicsystems.jarjar;
 
+import com.tonicsystems.jarjar.util.EntryKind;
 import com.tonicsystems.jarjar.util.EntryStruct;
 import com.tonicsystems.jarjar.util.JarProcessor;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.commons.Remapper;
 
 // TODO: this can probably be refactored into JarClassVisitor, etc.
-class KeepProcessor extends Remapper implements JarProcessor {
-  private final ClassVisitor cv = new ClassRemapper(new EmptyClassVisitor(), this);
-  private final List<Wildcard> wildcards;
-  private final List<String> roots = new ArrayList<>();
-  private final Map<String, Set<String>> depend = new HashMap<>();
+class KeepProcessor implements JarProcessor {
+  private final WildcardSet wildcards;
+  // Written concurrently when entries are processed on several threads.
+  private final Set<String> roots = ConcurrentHashMap.newKeySet();
+  private final Map<String, Set<String>> depend = new ConcurrentHashMap<>();
 
   public KeepProcessor(List<Keep> patterns) {
-    wildcards = PatternElement.createWildcards(patterns);
+    wildcards = new WildcardSet(PatternElement.createWildcards(patterns));
   }
 
   public boolean isEnabled() {
     return !wildcards.isEmpty();
   }
 
-  public Set<String> getExcludes() {
+  /** Returns the classes not reachable from the roots, by their names before renaming. */
+  public Set<String> getUnreachable() {
     Set<String> closure = new HashSet<>();
     closureHelper(closure, roots);
     Set<String> removable = new HashSet<>(depend.keySet());
@@ -66,21 +67,20 @@ class KeepProcessor extends Remapper implements JarProcessor {
     }
   }
 
-  private Set<String> curSet;
-
   @Override
   public boolean process(EntryStruct struct) throws IOException {
     try {
       if (struct.isClass()) {
         String name = struct.name.substring(0, struct.name.length() - 6);
-        for (Wildcard wildcard : wildcards) {
-          if (wildcard.matches(name)) {
-            roots.add(name);
-          }
+        if (wildcards.matches(name)) {
+          roots.add(name);
         }
-        depend.put(name, curSet = new HashSet<>());
+        Set<String> curSet = new HashSet<>();
+        depend.put(name, curSet);
         new ClassReader(new ByteArrayInputStream(struct.data))
-            .accept(cv, ClassReader.EXPAND_FRAMES);
+            .accept(
+                new ClassRemapper(new EmptyClassVisitor(), new DependencyCollector(curSet)),
+                ClassReader.EXPAND_FRAMES);
         curSet.remove(name);
       }
     } catch (Exception e) {
@@ -90,26 +90,40 @@ class KeepProcessor extends Remapper implements JarProcessor {
   }
 
   @Override
-  public String map(String key) {
-    if (key.startsWith("java/") || key.startsWith("javax/")) {
+  public Set<EntryKind> getKinds() {
+    return EnumSet.of(EntryKind.CLASS);
+  }
+
+  /** Records the classes referenced by a single class into a set owned by the calling thread. */
+  private static class DependencyCollector extends Remapper {
+    private final Set<String> curSet;
+
+    DependencyCollector(Set<String> curSet) {
+      this.curSet = curSet;
+    }
+
+    @Override
+    public String map(String key) {
+      if (key.startsWith("java/") || key.startsWith("javax/")) {
+        return null;
+      }
+      curSet.add(key);
       return null;
     }
-    curSet.add(key);
-    return null;
-  }
 
-  @Override
-  public Object mapValue(Object value) {
-    if (value instanceof String) {
-      String s = (String) value;
-      if (PackageRemapper.isArrayForName(s)) {
-        mapDesc(s.replace('.', '/'));
-      } else if (isForName(s)) {
-        map(s.replace('.', '/'));
+    @Override
+    public Object mapValue(Object value) {
+      if (value instanceof String) {
+        String s = (String) value;
+        if (PackageRemapper.isArrayForName(s)) {
+          mapDesc(s.replace('.', '/'));
+        } else if (isForName(s)) {
+          map(s.replace('.', '/'));
+        }
+        return value;
+      } else {
+        return super.mapValue(value);
       }
-      return value;
-    } else {
-      return super.mapValue(value);
     }
   }
 
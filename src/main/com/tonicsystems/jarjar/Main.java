@@ -18,21 +18,82 @@ package com.tonicsystems.jarjar;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.tonicsystems.jarjar.util.EntryCache;
 import com.tonicsystems.jarjar.util.IoUtil;
 import com.tonicsystems.jarjar.util.StandaloneJarProcessor;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
 
 /** Main class for Jarjar CLI. */
 public class Main {
+  private static final long DEFAULT_CACHE_SIZE = 1L << 30;
+
+  /** The system properties that commands read, which are forwarded to the daemon. */
+  static final List<String> PROPERTIES =
+      List.of(
+          "verbose",
+          "skipManifest",
+          "engine",
+          "threads",
+          "memoryBudget",
+          "offHeap",
+          "writeAhead",
+          "compression",
+          "cache",
+          "cacheSize",
+          "incremental");
+
+  private final Properties properties;
+  private final PrintStream out;
+  private final PrintStream err;
+  private final File dir;
+  private final Map<String, RuleSet> ruleSets;
+
+  /**
+   * @param properties the settings, as the system properties of a command line run
+   * @param dir the directory relative paths are resolved against, or null for the current one
+   * @param ruleSets compiled rules to reuse, keyed by {@link #loadRules}, or null to compile the
+   *     rules of every command
+   */
+  Main(
+      Properties properties,
+      PrintStream out,
+      PrintStream err,
+      File dir,
+      Map<String, RuleSet> ruleSets) {
+    this.properties = properties;
+    this.out = out;
+    this.err = err;
+    this.dir = dir;
+    this.ruleSets = ruleSets;
+  }
 
   public static void main(String[] argv) throws Exception {
     List<String> args = Arrays.asList(argv);
+    String daemon = System.getProperty("daemon");
+    if (daemon != null && !args.isEmpty() && !args.get(0).equals("daemon")) {
+      int status =
+          Daemon.forward(
+              Daemon.stateFile(daemon), args, System.getProperties(), System.out, System.err);
+      if (status != 0) {
+        System.exit(status);
+      }
+      return;
+    }
+    new Main(System.getProperties(), System.out, System.err, null, null).run(args);
+  }
+
+  void run(List<String> args) throws Exception {
     if (args.isEmpty()) {
       help();
       return;
@@ -49,58 +110,205 @@ public class Main {
       case "process":
         process(commandArgs);
         return;
+      case "batch":
+        batch(commandArgs);
+        return;
+      case "daemon":
+        daemon(commandArgs);
+        return;
       default:
         help();
         return;
     }
   }
 
-  private static void help() throws IOException {
+  private void help() throws IOException {
     try (InputStream helpStream = Main.class.getResourceAsStream("help.txt")) {
       String helpText =
           new String(helpStream.readAllBytes(), UTF_8).replace("\n", System.lineSeparator());
-      System.err.print(helpText);
+      err.print(helpText);
     }
   }
 
-  private static void strings(List<String> args) throws Exception {
+  private void strings(List<String> args) throws Exception {
     if (args.isEmpty()) {
       throw new IllegalArgumentException("cp is required");
     }
-    String cp = args.get(0);
+    String cp = classPath(args.get(0));
 
-    PrintWriter stdout = IoUtil.bufferedPrintWriter(System.out, UTF_8);
+    PrintWriter stdout = IoUtil.bufferedPrintWriter(out, UTF_8);
     new StringDumper().run(cp, stdout);
     stdout.flush();
   }
 
-  private static void find(List<String> args) throws IOException {
+  private void find(List<String> args) throws IOException {
     if (args.size() < 3) {
       throw new IllegalArgumentException("level and cp1 are required");
     }
     DepHandler.Level level = DepHandler.Level.valueOf(args.get(0).toUpperCase(Locale.ROOT));
-    String cp1 = args.get(1);
-    String cp2 = (args.size() == 2) ? cp1 : args.get(2);
+    String cp1 = classPath(args.get(1));
+    String cp2 = (args.size() == 2) ? cp1 : classPath(args.get(2));
 
-    PrintWriter stdout = IoUtil.bufferedPrintWriter(System.out, UTF_8);
+    PrintWriter stdout = IoUtil.bufferedPrintWriter(out, UTF_8);
     DepHandler handler = new TextDepHandler(stdout, level);
     new DepFind().run(cp1, cp2, handler);
     stdout.flush();
   }
 
-  private static void process(List<String> args) throws IOException {
+  private void process(List<String> args) throws IOException {
     if (args.size() < 3) {
       throw new IllegalArgumentException("rulesFile, inJar, and outJar are required");
     }
-    File rulesFile = new File(args.get(0));
-    File inJar = new File(args.get(1));
-    File outJar = new File(args.get(2));
+    File rulesFile = file(args.get(0));
+    List<File> inJars = new ArrayList<>();
+    for (String inJar : args.subList(1, args.size() - 1)) {
+      inJars.add(file(inJar));
+    }
+    String out = args.get(args.size() - 1);
+    File outJar = file(out);
+    if (out.endsWith("/") || out.endsWith(File.separator)) {
+      Files.createDirectories(outJar.toPath()); // write the entries as files
+    }
+
+    boolean skipManifest = getBoolean("skipManifest");
+    MainProcessor proc = new MainProcessor(loadRules(rulesFile), skipManifest, getEngine());
+    try (EntryCache cache = openCache()) {
+      proc.setCache(cache);
+      StandaloneJarProcessor.run(inJars, outJar, proc, getOptions());
+    }
+  }
+
+  private void batch(List<String> args) throws IOException {
+    if (args.size() < 2 || (args.size() > 2 && args.size() % 2 == 0)) {
+      throw new IllegalArgumentException(
+          "rulesFile and either @listFile or pairs of inJar and outJar are required");
+    }
+    File rulesFile = file(args.get(0));
+    List<BatchProcessor.Job> jobs = new ArrayList<>();
+    if (args.size() == 2 && args.get(1).startsWith("@")) {
+      jobs.addAll(BatchProcessor.readJobs(file(args.get(1).substring(1))));
+    } else if (args.size() == 2) {
+      throw new IllegalArgumentException("An outJar is required for " + args.get(1));
+    } else {
+      for (int i = 1; i < args.size(); i += 2) {
+        jobs.add(new BatchProcessor.Job(file(args.get(i)), file(args.get(i + 1))));
+      }
+    }
+
+    RuleSet rules = loadRules(rulesFile);
+    boolean skipManifest = getBoolean("skipManifest");
+    Map<BatchProcessor.Job, Exception> failures;
+    try (EntryCache cache = openCache()) {
+      failures =
+          new BatchProcessor(rules, skipManifest, getEngine(), getOptions(), cache).run(jobs);
+    }
+    for (Map.Entry<BatchProcessor.Job, Exception> failure : failures.entrySet()) {
+      err.println("Failed to process " + failure.getKey() + ": " + failure.getValue());
+    }
+    if (!failures.isEmpty()) {
+      throw new IOException(failures.size() + " of " + jobs.size() + " jars failed");
+    }
+  }
+
+  private void daemon(List<String> args) throws IOException {
+    if (ruleSets != null) {
+      throw new IllegalArgumentException("The daemon cannot start another daemon");
+    }
+    Daemon.serve(Daemon.stateFile(args.isEmpty() ? "" : args.get(0)), err);
+  }
+
+  /**
+   * Returns the compiled rules in {@code rulesFile}. Rules with the same text are compiled once,
+   * with the caches of their remapper, if this runs in the daemon.
+   */
+  private RuleSet loadRules(File rulesFile) throws IOException {
+    boolean verbose = getBoolean("verbose");
+    if (ruleSets == null) {
+      return new RuleSet(RulesFileParser.parse(rulesFile), verbose);
+    }
+    String text = new String(Files.readAllBytes(rulesFile.toPath()), UTF_8);
+    String key = verbose + "\n" + text;
+    RuleSet rules = ruleSets.get(key);
+    if (rules == null) {
+      rules = new RuleSet(RulesFileParser.parse(text), verbose);
+      ruleSets.put(key, rules);
+    }
+    return rules;
+  }
+
+  private File file(String path) {
+    File file = new File(path);
+    return (dir == null || file.isAbsolute()) ? file : new File(dir, path);
+  }
+
+  private String classPath(String cp) {
+    if (dir == null) {
+      return cp;
+    }
+    List<String> paths = new ArrayList<>();
+    for (String path : cp.split(File.pathSeparator, -1)) {
+      paths.add(path.isEmpty() ? path : file(path).getPath());
+    }
+    return String.join(File.pathSeparator, paths);
+  }
+
+  private boolean getBoolean(String name) {
+    return Boolean.parseBoolean(properties.getProperty(name));
+  }
 
-    List<PatternElement> rules = RulesFileParser.parse(rulesFile);
-    boolean verbose = Boolean.getBoolean("verbose");
-    boolean skipManifest = Boolean.getBoolean("skipManifest");
-    MainProcessor proc = new MainProcessor(rules, verbose, skipManifest);
-    StandaloneJarProcessor.run(inJar, outJar, proc);
-    proc.strip(outJar);
+  /** Returns a number like {@link Integer#getInteger}, from the properties of this run. */
+  private int getInt(String name, int defaultValue) {
+    String value = properties.getProperty(name);
+    if (value != null) {
+      try {
+        return Integer.decode(value);
+      } catch (NumberFormatException e) {
+        // Ignored like Integer.getInteger does
+      }
+    }
+    return defaultValue;
+  }
+
+  /** Returns a number like {@link Long#getLong}, from the properties of this run. */
+  private long getLong(String name, long defaultValue) {
+    String value = properties.getProperty(name);
+    if (value != null) {
+      try {
+        return Long.decode(value);
+      } catch (NumberFormatException e) {
+        // Ignored like Long.getLong does
+      }
+    }
+    return defaultValue;
+  }
+
+  private MainProcessor.Engine getEngine() {
+    return MainProcessor.Engine.parse(properties.getProperty("engine", "asm"));
+  }
+
+  /** Returns the cache set by the "cache" property, or null if there is none. */
+  private EntryCache openCache() throws IOException {
+    String cacheDir = properties.getProperty("cache");
+    if (cacheDir == null) {
+      return null;
+    }
+    return new EntryCache(file(cacheDir), getLong("cacheSize", DEFAULT_CACHE_SIZE));
+  }
+
+  private StandaloneJarProcessor.Options getOptions() {
+    StandaloneJarProcessor.Options options =
+        new StandaloneJarProcessor.Options()
+            .setThreads(getInt("threads", 1))
+            .setMemoryBudget(getLong("memoryBudget", Long.MAX_VALUE))
+            .setOffHeap(getBoolean("offHeap"))
+            .setCompression(
+                StandaloneJarProcessor.Compression.parse(
+                    properties.getProperty("compression", "default")))
+            .setIncremental(getBoolean("incremental"));
+    int writeAhead = getInt("writeAhead", 0);
+    if (writeAhead > 0) {
+      options.setWriteAhead(writeAhead); // otherwise the default, which depends on the threads
+    }
+    return options;
   }
 }
@@ -16,66 +16,144 @@
 
 package com.tonicsystems.jarjar;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.tonicsystems.jarjar.util.ConstantPoolFilter;
+import com.tonicsystems.jarjar.util.ConstantPoolTransformer;
+import com.tonicsystems.jarjar.util.EntryCache;
 import com.tonicsystems.jarjar.util.EntryStruct;
 import com.tonicsystems.jarjar.util.JarProcessor;
 import com.tonicsystems.jarjar.util.JarProcessorChain;
 import com.tonicsystems.jarjar.util.JarTransformerChain;
 import com.tonicsystems.jarjar.util.RemappingClassTransformer;
 import com.tonicsystems.jarjar.util.StandaloneJarProcessor;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 final class MainProcessor implements JarProcessor {
+  /** How classes are remapped. */
+  enum Engine {
+    /** Reads and writes every class that may be affected with ASM. */
+    ASM,
+    /**
+     * Reads and writes classes with ASM like {@link #ASM}, but reuses their constant pool and
+     * leaves frames and max values as they are.
+     */
+    ASM_COPY,
+    /** Rewrites the constant pool of classes, see {@link ConstantPoolTransformer}. */
+    CONSTANT_POOL;
+
+    /** Parses an engine name as given on the command line, ignoring case. */
+    static Engine parse(String name) {
+      return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+  }
+
   private final boolean verbose;
   private final JarProcessorChain chain;
   private final KeepProcessor kp;
-  private final Map<String, String> renames = new HashMap<>();
+  private final Map<String, String> renames = new ConcurrentHashMap<>();
+  private final byte[] fingerprint;
+  private EntryCache cache;
 
   public MainProcessor(List<PatternElement> patterns, boolean verbose, boolean skipManifest) {
-    this.verbose = verbose;
-    List<Zap> zapList = new ArrayList<>();
-    List<Rule> ruleList = new ArrayList<>();
-    List<Keep> keepList = new ArrayList<>();
-    for (PatternElement pattern : patterns) {
-      if (pattern instanceof Zap) {
-        zapList.add((Zap) pattern);
-      } else if (pattern instanceof Rule) {
-        ruleList.add((Rule) pattern);
-      } else if (pattern instanceof Keep) {
-        keepList.add((Keep) pattern);
-      }
-    }
+    this(patterns, verbose, skipManifest, Engine.ASM);
+  }
 
-    PackageRemapper pr = new PackageRemapper(ruleList, verbose);
-    kp = keepList.isEmpty() ? null : new KeepProcessor(keepList);
+  public MainProcessor(
+      List<PatternElement> patterns, boolean verbose, boolean skipManifest, Engine engine) {
+    this(new RuleSet(patterns, verbose), skipManifest, engine);
+  }
 
+  /** Creates a processor for a single jar, sharing the compiled rules with other jars. */
+  MainProcessor(RuleSet rules, boolean skipManifest, Engine engine) {
+    this.verbose = rules.verbose;
+    PackageRemapper pr = rules.remapper;
+    kp = rules.keeps.isEmpty() ? null : new KeepProcessor(rules.keeps);
+
+    // The keep processor only looks at entries, so it is not part of the chain, which may be
+    // skipped for entries found in the cache
     List<JarProcessor> processors = new ArrayList<>();
     processors.add(new ManifestProcessor(pr, skipManifest));
-    if (kp != null) {
-      processors.add(kp);
-    }
-    processors.add(new ZapProcessor(zapList));
-    processors.add(
+    processors.add(rules.zapProcessor);
+    ConstantPoolFilter filter = rules.filter;
+    JarProcessor asm =
         new JarTransformerChain(
-            new RemappingClassTransformer[] {new RemappingClassTransformer(pr)}));
+            new RemappingClassTransformer[] {new RemappingClassTransformer(pr, filter)},
+            engine == Engine.ASM_COPY);
+    processors.add(
+        (engine == Engine.CONSTANT_POOL) ? new ConstantPoolTransformer(pr, filter, asm) : asm);
     processors.add(new ResourceProcessor(pr));
     processors.add(new ServiceProcessor(pr));
     chain = new JarProcessorChain(processors.toArray(new JarProcessor[0]));
+
+    // Results are only reused by the same code, so none are if it cannot be read
+    byte[] code = Code.HASH;
+    if (code == null) {
+      fingerprint = null;
+    } else {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      bytes.writeBytes(code);
+      bytes.writeBytes((engine + "\0" + skipManifest + '\0').getBytes(UTF_8));
+      bytes.writeBytes(rules.fingerprint);
+      fingerprint = bytes.toByteArray();
+    }
   }
 
+  /**
+   * Sets a cache of processed entries to use and fill, or null for none. The cache may be shared
+   * by processors with different rules and settings, which are part of its keys, as is a hash of
+   * the code of jarjar. The cache is not used if that code cannot be read.
+   */
+  void setCache(EntryCache cache) {
+    this.cache = (fingerprint != null) ? cache : null;
+  }
+
+  /**
+   * Removes the classes that the keep rules did not reach from a jar that was already written.
+   * {@link StandaloneJarProcessor} drops them while writing, so this is only needed for writers
+   * that cannot wait for all the entries to be processed, like the Ant task.
+   *
+   * <p>{@code file} may also be a directory the entries were written to, from which the files of
+   * those classes are deleted.
+   */
   public void strip(File file) throws IOException {
     if (kp == null) {
       return;
     }
     Set<String> excludes = getExcludes();
-    if (!excludes.isEmpty()) {
+    if (excludes.isEmpty()) {
+      return;
+    }
+    if (!file.isDirectory()) {
       StandaloneJarProcessor.run(file, file, new ExcludeProcessor(excludes, verbose));
+      return;
+    }
+    Path root = file.toPath().toAbsolutePath().normalize();
+    for (String exclude : excludes) {
+      Path path = root.resolve(exclude).normalize();
+      if (path.startsWith(root) && Files.deleteIfExists(path) && verbose) {
+        System.err.println("Excluding " + exclude);
+      }
     }
   }
 
@@ -85,9 +163,13 @@ final class MainProcessor implements JarProcessor {
    *
    * @return the paths of the files in the jar-archive, including the <code>.class</code> suffix
    */
-  private Set<String> getExcludes() {
+  @Override
+  public Set<String> getExcludes() {
+    if (kp == null) {
+      return Collections.emptySet();
+    }
     Set<String> result = new HashSet<>();
-    for (String exclude : kp.getExcludes()) {
+    for (String exclude : kp.getUnreachable()) {
       String name = exclude + ".class";
       String renamed = renames.get(name);
       result.add((renamed != null) ? renamed : name);
@@ -95,6 +177,13 @@ final class MainProcessor implements JarProcessor {
     return result;
   }
 
+  @Override
+  public void excluded(String name) {
+    if (verbose) {
+      System.err.println("Excluding " + name);
+    }
+  }
+
   /**
    * @param struct
    * @return <code>true</code> if the entry is to include in the output jar
@@ -103,7 +192,11 @@ final class MainProcessor implements JarProcessor {
   @Override
   public boolean process(EntryStruct struct) throws IOException {
     String name = struct.name;
-    boolean keepIt = chain.process(struct);
+    if (kp != null) {
+      kp.process(struct);
+    }
+    boolean keepIt =
+        (cache != null && !struct.isDir()) ? processCached(struct) : chain.process(struct);
     if (keepIt) {
       if (!name.equals(struct.name)) {
         if (kp != null) {
@@ -120,4 +213,96 @@ final class MainProcessor implements JarProcessor {
     }
     return keepIt;
   }
+
+  @Override
+  public boolean accepts(String name) {
+    // The keep processor follows the references of every class, even of those dropped later
+    if (kp != null || chain.accepts(name)) {
+      return true;
+    }
+    if (verbose) {
+      System.err.println("Removed " + name);
+    }
+    return false;
+  }
+
+  @Override
+  public byte[] getFingerprint() {
+    return (fingerprint != null) ? fingerprint.clone() : null;
+  }
+
+  @Override
+  public void processUnchanged(EntryStruct struct, String outputName) throws IOException {
+    if (kp != null) {
+      kp.process(struct);
+      if (outputName != null && !outputName.equals(struct.name)) {
+        renames.put(struct.name, outputName);
+      }
+    }
+  }
+
+  @Override
+  public boolean readsUnchanged() {
+    return kp != null; // only the keep processor parses the classes it did not process
+  }
+
+  private boolean processCached(EntryStruct struct) throws IOException {
+    byte[] key = EntryCache.key(fingerprint, struct.name, struct.data);
+    EntryCache.Result cached = cache.get(key);
+    if (cached == null) {
+      // None of the processors modify the data they are given in place
+      byte[] original = struct.data;
+      boolean keepIt = chain.process(struct);
+      cache.put(
+          key,
+          new EntryCache.Result(
+              keepIt ? struct.name : null, (struct.data != original) ? struct.data : null));
+      return keepIt;
+    }
+    if (cached.name == null) {
+      return false;
+    }
+    struct.name = cached.name;
+    if (cached.data != null) {
+      struct.data = cached.data;
+    }
+    return true;
+  }
+
+  /** A hash of the jar or the directory of classes that jarjar was loaded from. */
+  private static final class Code {
+    /** Null if the code cannot be read, in which case results must not be kept across runs. */
+    static final byte[] HASH = hash();
+
+    private static byte[] hash() {
+      try {
+        CodeSource source = MainProcessor.class.getProtectionDomain().getCodeSource();
+        if (source == null) {
+          return null;
+        }
+        Path root = Paths.get(source.getLocation().toURI());
+        List<Path> files;
+        if (Files.isDirectory(root)) {
+          try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+          }
+        } else {
+          files = Collections.singletonList(root);
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (Path file : files) {
+          digest.update((root.relativize(file) + "\0").getBytes(UTF_8));
+          digest.update(Files.readAllBytes(file));
+        }
+        return digest.digest();
+      } catch (IOException
+          | URISyntaxException
+          | NoSuchAlgorithmException
+          | IllegalArgumentException
+          | FileSystemNotFoundException
+          | SecurityException e) {
+        return null;
+      }
+    }
+  }
 }
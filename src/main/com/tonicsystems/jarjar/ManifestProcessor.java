@@ -16,16 +16,17 @@
 
 package com.tonicsystems.jarjar;
 
+import com.tonicsystems.jarjar.util.EntryKind;
 import com.tonicsystems.jarjar.util.EntryStruct;
 import com.tonicsystems.jarjar.util.JarProcessor;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.jar.Manifest;
 
 final class ManifestProcessor implements JarProcessor {
-  private static final String MANIFEST_PATH = "META-INF/MANIFEST.MF";
-
   private final PackageRemapper pr;
   private final boolean skipManifest;
 
@@ -36,7 +37,7 @@ final class ManifestProcessor implements JarProcessor {
 
   @Override
   public boolean process(EntryStruct struct) throws IOException {
-    if (!struct.name.equalsIgnoreCase(MANIFEST_PATH)) {
+    if (!struct.name.equalsIgnoreCase(EntryKind.MANIFEST_NAME)) {
       return true; // Ignore all other files
     }
 
@@ -51,6 +52,16 @@ final class ManifestProcessor implements JarProcessor {
     return true;
   }
 
+  @Override
+  public boolean accepts(String name) {
+    return !skipManifest || !name.equalsIgnoreCase(EntryKind.MANIFEST_NAME);
+  }
+
+  @Override
+  public Set<EntryKind> getKinds() {
+    return EnumSet.of(EntryKind.MANIFEST);
+  }
+
   private void remapAttributeValue(Manifest manifest, String name) {
     String value = manifest.getMainAttributes().getValue(name);
     if (value != null) {
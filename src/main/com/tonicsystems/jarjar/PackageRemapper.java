@@ -16,9 +16,10 @@
 
 package com.tonicsystems.jarjar;
 
-import java.util.HashMap;
+import com.tonicsystems.jarjar.util.ConstantPoolFilter;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import org.objectweb.asm.commons.Remapper;
 
@@ -28,15 +29,26 @@ class PackageRemapper extends Remapper {
   private static final Pattern ARRAY_FOR_NAME_PATTERN =
       Pattern.compile("\\[L[\\p{javaJavaIdentifierPart}\\.]+?;");
 
-  private final List<Wildcard> wildcards;
-  private final Map<String, String> typeCache = new HashMap<>();
-  private final Map<String, String> pathCache = new HashMap<>();
-  private final Map<Object, String> valueCache = new HashMap<>();
+  // The caches are shared by all the threads processing a jar, and by the requests of a daemon
+  // using the same rules. Unchanged names are cached as themselves, since concurrent maps cannot
+  // hold nulls. A cache that reaches the limit starts over, so that a daemon does not grow forever.
+  private static final int MAX_CACHED = 1 << 18;
+
+  private final WildcardSet wildcards;
+  private final Map<String, String> typeCache = new ConcurrentHashMap<>();
+  private final Map<String, String> descCache = new ConcurrentHashMap<>();
+  private final Map<String, String> pathCache = new ConcurrentHashMap<>();
+  private final Map<Object, String> valueCache = new ConcurrentHashMap<>();
   private final boolean verbose;
 
   public PackageRemapper(List<Rule> ruleList, boolean verbose) {
     this.verbose = verbose;
-    wildcards = PatternElement.createWildcards(ruleList);
+    wildcards = new WildcardSet(PatternElement.createWildcards(ruleList));
+  }
+
+  /** Returns a filter for the classes that this remapper may change. */
+  public ConstantPoolFilter getConstantPoolFilter() {
+    return ConstantPoolFilter.forPrefixes(wildcards.getPrefixes());
   }
 
   // also used by KeepProcessor
@@ -49,44 +61,82 @@ class PackageRemapper extends Remapper {
     String s = typeCache.get(key);
     if (s == null) {
       s = replaceHelper(key);
-      if (key.equals(s)) {
-        s = null;
-      }
-      typeCache.put(key, s);
+      cache(typeCache, key, s);
+    }
+    return key.equals(s) ? null : s;
+  }
+
+  @Override
+  public String mapType(String internalName) {
+    // Remapper wraps the name in a Type only to unwrap it again, unless it is an array
+    if (internalName == null || internalName.startsWith("[")) {
+      return super.mapType(internalName);
+    }
+    String s = map(internalName);
+    return (s != null) ? s : internalName;
+  }
+
+  // Remapper builds a new string for every descriptor, even one it leaves unchanged, and the
+  // same few descriptors make up most of every class.
+  @Override
+  public String mapDesc(String desc) {
+    String s = descCache.get(desc);
+    if (s == null) {
+      s = cachedDesc(desc, super.mapDesc(desc));
+    }
+    return s;
+  }
+
+  @Override
+  public String mapMethodDesc(String desc) {
+    String s = descCache.get(desc);
+    if (s == null) {
+      s = cachedDesc(desc, super.mapMethodDesc(desc));
     }
     return s;
   }
 
+  private String cachedDesc(String desc, String mapped) {
+    // Field and method descriptors cannot be equal, so they share a cache
+    String s = mapped.equals(desc) ? desc : mapped;
+    cache(descCache, desc, s);
+    return s;
+  }
+
   public String mapPath(String path) {
     String s = pathCache.get(path);
     if (s == null) {
-      s = path;
-      int slash = s.lastIndexOf('/');
-      String end;
-      if (slash < 0) {
-        end = s;
-        s = RESOURCE_SUFFIX;
-      } else {
-        end = s.substring(slash + 1);
-        s = s.substring(0, slash + 1) + RESOURCE_SUFFIX;
-      }
-      boolean absolute = s.startsWith("/");
-      if (absolute) {
-        s = s.substring(1);
-      }
+      s = mapPathHelper(path);
+      cache(pathCache, path, s);
+    }
+    return s;
+  }
+
+  private String mapPathHelper(String path) {
+    String s = path;
+    int slash = s.lastIndexOf('/');
+    String end;
+    if (slash < 0) {
+      end = s;
+      s = RESOURCE_SUFFIX;
+    } else {
+      end = s.substring(slash + 1);
+      s = s.substring(0, slash + 1) + RESOURCE_SUFFIX;
+    }
+    boolean absolute = s.startsWith("/");
+    if (absolute) {
+      s = s.substring(1);
+    }
 
-      s = replaceHelper(s);
+    s = replaceHelper(s);
 
-      if (absolute) {
-        s = "/" + s;
-      }
-      if (!s.contains(RESOURCE_SUFFIX)) {
-        return path;
-      }
-      s = s.substring(0, s.length() - RESOURCE_SUFFIX.length()) + end;
-      pathCache.put(path, s);
+    if (absolute) {
+      s = "/" + s;
     }
-    return s;
+    if (!s.contains(RESOURCE_SUFFIX)) {
+      return path;
+    }
+    return s.substring(0, s.length() - RESOURCE_SUFFIX.length()) + end;
   }
 
   @Override
@@ -115,7 +165,7 @@ class PackageRemapper extends Remapper {
             }
           }
         }
-        valueCache.put(value, s);
+        cache(valueCache, value, s);
       }
       // TODO: add back class name to verbose message
       if (verbose && !s.equals(value)) {
@@ -127,13 +177,15 @@ class PackageRemapper extends Remapper {
     }
   }
 
-  private String replaceHelper(String value) {
-    for (Wildcard wildcard : wildcards) {
-      String test = wildcard.replace(value);
-      if (test != null) {
-        return test;
-      }
+  private static <K> void cache(Map<K, String> cache, K key, String value) {
+    if (cache.size() >= MAX_CACHED) {
+      cache.clear();
     }
-    return value;
+    cache.put(key, value);
+  }
+
+  private String replaceHelper(String value) {
+    String test = wildcards.replace(value);
+    return (test != null) ? test : value;
   }
 }
@@ -16,9 +16,12 @@
 
 package com.tonicsystems.jarjar;
 
+import com.tonicsystems.jarjar.util.EntryKind;
 import com.tonicsystems.jarjar.util.EntryStruct;
 import com.tonicsystems.jarjar.util.JarProcessor;
 import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
 
 class ResourceProcessor implements JarProcessor {
   private final PackageRemapper pr;
@@ -34,4 +37,9 @@ class ResourceProcessor implements JarProcessor {
     }
     return true;
   }
+
+  @Override
+  public Set<EntryKind> getKinds() {
+    return EnumSet.of(EntryKind.RESOURCE);
+  }
 }
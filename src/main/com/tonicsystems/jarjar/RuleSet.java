@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.tonicsystems.jarjar.util.ConstantPoolFilter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rules compiled once, to be shared by the {@link MainProcessor} of every jar they are applied to.
+ *
+ * <p>The remapper, with its compiled wildcards and the caches of names it already mapped, is
+ * shared. Only keep rules need state of their own for each jar. This is safe for concurrent use.
+ */
+final class RuleSet {
+  final boolean verbose;
+  final List<Keep> keeps;
+  final PackageRemapper remapper;
+  final ConstantPoolFilter filter;
+  final ZapProcessor zapProcessor;
+
+  /** A hash of the rules, which changes whenever they may transform entries differently. */
+  final byte[] fingerprint;
+
+  RuleSet(List<PatternElement> patterns, boolean verbose) {
+    this.verbose = verbose;
+    List<Zap> zapList = new ArrayList<>();
+    List<Rule> ruleList = new ArrayList<>();
+    List<Keep> keepList = new ArrayList<>();
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    for (PatternElement pattern : patterns) {
+      String result = (pattern instanceof Rule) ? ((Rule) pattern).getResult() : "";
+      digest.update(
+          (pattern.getClass().getSimpleName() + '\0' + pattern.getPattern() + '\0' + result + '\n')
+              .getBytes(UTF_8));
+      if (pattern instanceof Zap) {
+        zapList.add((Zap) pattern);
+      } else if (pattern instanceof Rule) {
+        ruleList.add((Rule) pattern);
+      } else if (pattern instanceof Keep) {
+        keepList.add((Keep) pattern);
+      }
+    }
+    this.keeps = Collections.unmodifiableList(keepList);
+    this.remapper = new PackageRemapper(ruleList, verbose);
+    this.filter = remapper.getConstantPoolFilter();
+    this.zapProcessor = new ZapProcessor(zapList);
+    this.fingerprint = digest.digest();
+  }
+}
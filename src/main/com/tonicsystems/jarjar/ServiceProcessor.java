@@ -18,9 +18,12 @@ package com.tonicsystems.jarjar;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.tonicsystems.jarjar.util.EntryKind;
 import com.tonicsystems.jarjar.util.EntryStruct;
 import com.tonicsystems.jarjar.util.JarProcessor;
 import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 class ServiceProcessor implements JarProcessor {
@@ -30,13 +33,11 @@ class ServiceProcessor implements JarProcessor {
     this.pr = pr;
   }
 
-  private static final String SERVICES_PREFIX = "META-INF/services/";
-
   @Override
   public boolean process(EntryStruct struct) throws IOException {
-    if (struct.name.startsWith(SERVICES_PREFIX)) {
-      String serviceName = struct.name.substring(SERVICES_PREFIX.length());
-      struct.name = SERVICES_PREFIX + mapString(serviceName);
+    if (struct.name.startsWith(EntryKind.SERVICES_PREFIX)) {
+      String serviceName = struct.name.substring(EntryKind.SERVICES_PREFIX.length());
+      struct.name = EntryKind.SERVICES_PREFIX + mapString(serviceName);
 
       struct.data =
           new String(struct.data, UTF_8)
@@ -48,6 +49,11 @@ class ServiceProcessor implements JarProcessor {
     return true;
   }
 
+  @Override
+  public Set<EntryKind> getKinds() {
+    return EnumSet.of(EntryKind.SERVICE);
+  }
+
   private String mapString(String s) {
     return (String) pr.mapValue(s);
   }
@@ -20,7 +20,6 @@ import com.tonicsystems.jarjar.util.ClassPathEntry;
 import com.tonicsystems.jarjar.util.ClassPathIterator;
 import com.tonicsystems.jarjar.util.RuntimeIOException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import org.objectweb.asm.ClassReader;
 
@@ -33,13 +32,10 @@ class StringDumper {
     try {
       while (cp.hasNext()) {
         ClassPathEntry entry = cp.next();
-        InputStream in = entry.openStream();
         try {
-          new ClassReader(in).accept(stringReader, 0);
+          new ClassReader(entry.readAllBytes()).accept(stringReader, 0);
         } catch (Exception e) {
           System.err.println("Error reading " + entry.getName() + ": " + e.getMessage());
-        } finally {
-          in.close();
         }
         pw.flush();
       }
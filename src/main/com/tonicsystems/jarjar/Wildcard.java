@@ -18,16 +18,34 @@ package com.tonicsystems.jarjar;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
+/**
+ * A package pattern with "*" and "**" wildcards, and a result that can refer to the text they
+ * matched.
+ *
+ * <p>Patterns used to be compiled to regular expressions, and the matcher below reproduces their
+ * semantics exactly: "**" matched "(.+?)", "*" matched "([^/]+)", a wildcard at the end of the
+ * pattern may also match nothing, and "$" was an end of input anchor.
+ */
 class Wildcard {
-  private static final Pattern DSTAR = Pattern.compile("\\*\\*");
-  private static final Pattern STAR = Pattern.compile("\\*");
-  private static final Pattern ESTAR = Pattern.compile("\\+\\??\\)\\Z");
+  private static final byte LITERAL = 0;
+  private static final byte STAR = 1;
+  private static final byte DSTAR = 2;
+  private static final byte DOLLAR = 3;
+
+  private static final int NO_MATCH = 0;
+  private static final int MATCH = 1;
+  private static final int INVALID = 2;
 
-  private final Pattern pattern;
+  private static final int[] NO_GROUPS = new int[0];
+
+  private final String pattern;
+  private final String prefix;
+  private final byte[] kinds;
+  private final String[] literals;
   private final int count;
+  private final int trailing;
   private final ArrayList<Object> parts = new ArrayList<>(16); // kept for debugging
   private final String[] strings;
   private final int[] refs;
@@ -43,12 +61,55 @@ class Wildcard {
       throw new IllegalArgumentException("The sequence '***' is invalid in a package pattern");
     }
 
-    String regex = pattern;
-    regex = replaceAllLiteral(DSTAR, regex, "(.+?)");
-    regex = replaceAllLiteral(STAR, regex, "([^/]+)");
-    regex = replaceAllLiteral(ESTAR, regex, "*)");
-    this.pattern = Pattern.compile("\\A" + regex + "\\Z");
-    this.count = this.pattern.matcher("foo").groupCount();
+    // "$" is an anchor rather than a literal character, so it also ends the prefix
+    int end = 0;
+    while (end < pattern.length() && pattern.charAt(end) != '*' && pattern.charAt(end) != '$') {
+      end++;
+    }
+    this.prefix = pattern.substring(0, end);
+
+    this.pattern = pattern;
+    List<Byte> kindList = new ArrayList<>();
+    List<String> literalList = new ArrayList<>();
+    int groups = 0;
+    for (int i = 0, mark = 0, len = pattern.length(); i <= len; i++) {
+      char ch = (i == len) ? '*' : pattern.charAt(i);
+      if (ch != '*' && ch != '$') {
+        continue;
+      }
+      if (i > mark) {
+        kindList.add(LITERAL);
+        literalList.add(pattern.substring(mark, i));
+      }
+      if (i < len) {
+        if (ch == '$') {
+          kindList.add(DOLLAR);
+        } else if (i + 1 < len && pattern.charAt(i + 1) == '*') {
+          kindList.add(DSTAR);
+          groups++;
+          i++;
+        } else {
+          kindList.add(STAR);
+          groups++;
+        }
+        literalList.add(null);
+      }
+      mark = i + 1;
+    }
+    this.kinds = new byte[kindList.size()];
+    for (int i = 0; i < kinds.length; i++) {
+      kinds[i] = kindList.get(i);
+    }
+    this.literals = literalList.toArray(new String[0]);
+    this.count = groups;
+
+    // A trailing wildcard may match nothing, and the regular expression's "\Z" let a final
+    // NEL character stand between the wildcard and the end of the pattern.
+    int last = kinds.length - 1;
+    if (last > 0 && kinds[last] == LITERAL && literals[last].equals("\u0085")) {
+      last--;
+    }
+    this.trailing = (last >= 0 && kinds[last] != LITERAL && kinds[last] != DOLLAR) ? last : -1;
 
     // TODO: check for illegal characters
     char[] chars = result.toCharArray();
@@ -107,28 +168,126 @@ class Wildcard {
     // System.err.println(this);
   }
 
+  /** Returns the literal text before the first wildcard or "$", which every match starts with. */
+  String getPrefix() {
+    return prefix;
+  }
+
   public boolean matches(String value) {
-    return getMatcher(value) != null;
+    return match(value, 0, 0, 0, (count == 0) ? NO_GROUPS : new int[count * 2]) == MATCH;
   }
 
   public String replace(String value) {
-    Matcher matcher = getMatcher(value);
-    if (matcher != null) {
-      StringBuilder sb = new StringBuilder();
-      for (int i = 0; i < strings.length; i++) {
-        sb.append((refs[i] >= 0) ? matcher.group(refs[i]) : strings[i]);
+    int[] groups = (count == 0) ? NO_GROUPS : new int[count * 2];
+    if (match(value, 0, 0, 0, groups) != MATCH) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < strings.length; i++) {
+      int ref = refs[i];
+      if (ref < 0) {
+        sb.append(strings[i]);
+      } else if (ref == 0) {
+        sb.append(value);
+      } else {
+        sb.append(value, groups[ref * 2 - 2], groups[ref * 2 - 1]);
       }
-      return sb.toString();
     }
-    return null;
+    return sb.toString();
   }
 
-  private Matcher getMatcher(String value) {
-    Matcher matcher = pattern.matcher(value);
-    if (matcher.matches() && checkIdentifierChars(value, "/-")) {
-      return matcher;
+  /**
+   * Matches the tokens from {@code token} on against the value from {@code pos} on, recording the
+   * bounds of each wildcard in {@code groups}. Wildcards are tried greedily ("*", and any final
+   * wildcard) or reluctantly ("**"), backtracking in the same order as the regular expressions
+   * did.
+   *
+   * <p>Every character of a matching value is consumed either by a literal, which only contains
+   * valid characters, or by a wildcard. Wildcards therefore check the characters they scan, and a
+   * single invalid character rejects the whole value.
+   */
+  private int match(String value, int token, int pos, int group, int[] groups) {
+    int len = value.length();
+    if (token == kinds.length) {
+      return (pos == len) ? MATCH : NO_MATCH;
     }
-    return null;
+    boolean last = (token == trailing);
+    switch (kinds[token]) {
+      case LITERAL:
+        {
+          String literal = literals[token];
+          if (!value.startsWith(literal, pos)) {
+            return NO_MATCH;
+          }
+          return match(value, token + 1, pos + literal.length(), group, groups);
+        }
+      case DOLLAR:
+        if (pos == len || (pos == len - 1 && value.charAt(pos) == '\u0085')) {
+          return match(value, token + 1, pos, group, groups);
+        }
+        return NO_MATCH;
+      case STAR:
+        {
+          int end = pos;
+          for (; end < len && value.charAt(end) != '/'; end++) {
+            if (!isValidChar(value.charAt(end))) {
+              return INVALID;
+            }
+          }
+          return matchGreedy(value, token, pos, end, last ? pos : pos + 1, group, groups);
+        }
+      case DSTAR:
+        if (last) {
+          int end = pos;
+          for (; end < len && !isLineTerminator(value.charAt(end)); end++) {
+            if (!isValidChar(value.charAt(end))) {
+              return INVALID;
+            }
+          }
+          return matchGreedy(value, token, pos, end, pos, group, groups);
+        }
+        for (int end = pos + 1; end <= len; end++) {
+          char ch = value.charAt(end - 1);
+          if (!isValidChar(ch)) {
+            return INVALID;
+          }
+          if (isLineTerminator(ch)) {
+            return NO_MATCH;
+          }
+          groups[group * 2] = pos;
+          groups[group * 2 + 1] = end;
+          int result = match(value, token + 1, end, group + 1, groups);
+          if (result != NO_MATCH) {
+            return result;
+          }
+        }
+        return NO_MATCH;
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  /** Tries the longest possible wildcard match first, down to {@code min} characters. */
+  private int matchGreedy(
+      String value, int token, int pos, int end, int min, int group, int[] groups) {
+    for (; end >= min; end--) {
+      groups[group * 2] = pos;
+      groups[group * 2 + 1] = end;
+      int result = match(value, token + 1, end, group + 1, groups);
+      if (result != NO_MATCH) {
+        return result;
+      }
+    }
+    return NO_MATCH;
+  }
+
+  private static boolean isValidChar(char c) {
+    return c == '/' || c == '-' || Character.isJavaIdentifierPart(c);
+  }
+
+  // The characters that "." did not match.
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
   }
 
   private static boolean checkIdentifierChars(String expr, String extra) {
@@ -150,11 +309,6 @@ class Wildcard {
     return true;
   }
 
-  private static String replaceAllLiteral(Pattern pattern, String value, String replace) {
-    replace = replace.replaceAll("([$\\\\])", "\\\\$0");
-    return pattern.matcher(value).replaceAll(replace);
-  }
-
   @Override
   public String toString() {
     return "Wildcard{pattern=" + pattern + ",parts=" + parts + "}";
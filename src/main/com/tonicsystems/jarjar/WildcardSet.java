@@ -0,0 +1,108 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An ordered list of wildcards compiled into a trie keyed on the literal prefix of each pattern, so
+ * that a value is only matched against the wildcards that could possibly apply to it.
+ *
+ * <p>Like a linear scan, the first wildcard in list order that matches a value wins.
+ */
+class WildcardSet {
+  private final Wildcard[] wildcards;
+  private final Node root = new Node();
+
+  public WildcardSet(List<Wildcard> wildcards) {
+    this.wildcards = wildcards.toArray(new Wildcard[0]);
+    for (int i = 0; i < this.wildcards.length; i++) {
+      String prefix = this.wildcards[i].getPrefix();
+      Node node = root;
+      for (int j = 0; j < prefix.length(); j++) {
+        node = node.children.computeIfAbsent(prefix.charAt(j), (c) -> new Node());
+      }
+      node.add(i);
+    }
+  }
+
+  /** Returns the literal prefix of every wildcard, see {@link Wildcard#getPrefix}. */
+  public List<String> getPrefixes() {
+    List<String> result = new ArrayList<>(wildcards.length);
+    for (Wildcard wildcard : wildcards) {
+      result.add(wildcard.getPrefix());
+    }
+    return result;
+  }
+
+  public boolean isEmpty() {
+    return wildcards.length == 0;
+  }
+
+  /** Returns true if any of the wildcards matches the value. */
+  public boolean matches(String value) {
+    Node node = root;
+    for (int i = 0; node != null; i++) {
+      for (int index : node.wildcards) {
+        if (wildcards[index].matches(value)) {
+          return true;
+        }
+      }
+      node = (i < value.length()) ? node.children.get(value.charAt(i)) : null;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the value as replaced by the first matching wildcard, or null if none of them match.
+   */
+  public String replace(String value) {
+    String result = null;
+    int best = Integer.MAX_VALUE;
+    Node node = root;
+    for (int i = 0; node != null; i++) {
+      // Wildcards are stored in list order, so the first match on each node is its best candidate.
+      for (int index : node.wildcards) {
+        if (index > best) {
+          break;
+        }
+        String test = wildcards[index].replace(value);
+        if (test != null) {
+          result = test;
+          best = index;
+          break;
+        }
+      }
+      node = (i < value.length()) ? node.children.get(value.charAt(i)) : null;
+    }
+    return result;
+  }
+
+  private static class Node {
+    final Map<Character, Node> children = new HashMap<>();
+    int[] wildcards = new int[0];
+
+    void add(int index) {
+      wildcards = Arrays.copyOf(wildcards, wildcards.length + 1);
+      wildcards[wildcards.length - 1] = index;
+    }
+  }
+}
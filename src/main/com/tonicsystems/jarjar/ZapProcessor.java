@@ -16,34 +16,37 @@
 
 package com.tonicsystems.jarjar;
 
+import com.tonicsystems.jarjar.util.EntryKind;
 import com.tonicsystems.jarjar.util.EntryStruct;
 import com.tonicsystems.jarjar.util.JarProcessor;
 import java.io.IOException;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 class ZapProcessor implements JarProcessor {
-  private final List<Wildcard> wildcards;
+  private final WildcardSet wildcards;
 
   public ZapProcessor(List<Zap> zapList) {
-    wildcards = PatternElement.createWildcards(zapList);
+    wildcards = new WildcardSet(PatternElement.createWildcards(zapList));
   }
 
   @Override
   public boolean process(EntryStruct struct) throws IOException {
-    String name = struct.name;
-    if (struct.isClass()) {
-      return !zap(name.substring(0, name.length() - 6));
-    }
-    return true;
+    return accepts(struct.name);
+  }
+
+  @Override
+  public boolean accepts(String name) {
+    return !name.endsWith(".class") || !zap(name.substring(0, name.length() - 6));
+  }
+
+  @Override
+  public Set<EntryKind> getKinds() {
+    return EnumSet.of(EntryKind.CLASS);
   }
 
   private boolean zap(String desc) {
-    // TODO: optimize
-    for (Wildcard wildcard : wildcards) {
-      if (wildcard.matches(desc)) {
-        return true;
-      }
-    }
-    return false;
+    return wildcards.matches(desc);
   }
 }
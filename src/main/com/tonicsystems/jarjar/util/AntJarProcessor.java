@@ -20,8 +20,12 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.taskdefs.Jar;
 import org.apache.tools.ant.types.ZipFileSet;
@@ -37,6 +41,12 @@ public abstract class AntJarProcessor extends Jar {
   private boolean filesOnly;
 
   protected boolean verbose;
+  protected int threads = 1;
+
+  // With more than one thread, entries are processed in the background and written in the order
+  // they were handed to zipFile, keeping at most a few entries per thread in flight.
+  private ForkJoinPool pool;
+  private final ArrayDeque<Pending> pending = new ArrayDeque<>();
 
   private static final ZipExtraField[] JAR_MARKER = new ZipExtraField[] {JarMarker.getInstance()};
 
@@ -44,6 +54,13 @@ public abstract class AntJarProcessor extends Jar {
     this.verbose = verbose;
   }
 
+  public void setThreads(int threads) {
+    if (threads < 1) {
+      throw new BuildException("threads must be positive: " + threads);
+    }
+    this.threads = threads;
+  }
+
   public abstract void execute() throws BuildException;
 
   public void execute(JarProcessor proc) throws BuildException {
@@ -67,21 +84,76 @@ public abstract class AntJarProcessor extends Jar {
       File fromArchive,
       int mode)
       throws IOException {
+    if (!proc.accepts(vPath)) {
+      return;
+    }
+    if (threads > 1) {
+      EntryStruct entry = new EntryStruct();
+      entry.data = is.readAllBytes();
+      entry.name = vPath;
+      entry.time = lastModified;
+      if (pool == null) {
+        pool = new ForkJoinPool(threads);
+      }
+      Future<Boolean> result = pool.submit(() -> proc.process(entry));
+      pending.add(new Pending(entry, result, fromArchive, mode));
+      if (pending.size() >= threads * 4) {
+        writePending(zOut);
+      }
+      return;
+    }
+
     struct.data = is.readAllBytes();
     struct.name = vPath;
     struct.time = lastModified;
     if (proc.process(struct)) {
-      if (mode == 0) {
-        mode = ZipFileSet.DEFAULT_FILE_MODE;
-      }
-      if (!filesOnly) {
-        addParentDirs(struct.name, zOut);
+      writeEntry(struct, zOut, fromArchive, mode);
+    }
+  }
+
+  protected void finalizeZipOutputStream(ZipOutputStream zOut)
+      throws IOException, BuildException {
+    while (!pending.isEmpty()) {
+      writePending(zOut);
+    }
+    super.finalizeZipOutputStream(zOut);
+  }
+
+  /** Waits for the oldest pending entry to be processed and writes it if it was kept. */
+  private void writePending(ZipOutputStream zOut) throws IOException {
+    Pending next = pending.remove();
+    boolean keep;
+    try {
+      keep = next.result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BuildException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
       }
-      super.zipFile(
-          new ByteArrayInputStream(struct.data), zOut, struct.name, struct.time, fromArchive, mode);
+      throw new BuildException(cause);
+    }
+    if (keep) {
+      writeEntry(next.entry, zOut, next.fromArchive, next.mode);
     }
   }
 
+  private void writeEntry(EntryStruct entry, ZipOutputStream zOut, File fromArchive, int mode)
+      throws IOException {
+    if (mode == 0) {
+      mode = ZipFileSet.DEFAULT_FILE_MODE;
+    }
+    if (!filesOnly) {
+      addParentDirs(entry.name, zOut);
+    }
+    super.zipFile(
+        new ByteArrayInputStream(entry.data), zOut, entry.name, entry.time, fromArchive, mode);
+  }
+
   private void addParentDirs(String file, ZipOutputStream zOut) throws IOException {
     int slash = file.lastIndexOf('/');
     if (slash >= 0) {
@@ -105,7 +177,27 @@ public abstract class AntJarProcessor extends Jar {
 
   protected void cleanHelper() {
     verbose = false;
+    threads = 1;
     filesOnly = false;
     dirs.clear();
+    pending.clear();
+    if (pool != null) {
+      pool.shutdownNow();
+      pool = null;
+    }
+  }
+
+  private static final class Pending {
+    final EntryStruct entry;
+    final Future<Boolean> result;
+    final File fromArchive;
+    final int mode;
+
+    Pending(EntryStruct entry, Future<Boolean> result, File fromArchive, int mode) {
+      this.entry = entry;
+      this.result = result;
+      this.fromArchive = fromArchive;
+      this.mode = mode;
+    }
   }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * A processor that completes entries asynchronously, so that processors waiting on I/O or on other
+ * threads do not hold one of the threads that read entries.
+ *
+ * <p>{@link StandaloneJarProcessor} reads entries on a single thread and hands each of them to
+ * {@link #processAsync}, with a bounded number of entries in flight. Processors that do CPU-bound
+ * work, like rewriting classes, should run it on an executor of their own, see {@link #of}.
+ */
+public interface AsyncJarProcessor extends JarProcessor {
+  /**
+   * Processes the entry, like {@link #process}.
+   *
+   * @return a future completing with the processed entry, which is usually {@code struct} itself,
+   *     or with null if the entry is dropped
+   */
+  CompletableFuture<EntryStruct> processAsync(EntryStruct struct);
+
+  /** Processes the entry with {@link #processAsync}, waiting for it to complete. */
+  @Override
+  default boolean process(EntryStruct struct) throws IOException {
+    EntryStruct result;
+    try {
+      result = processAsync(struct).join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeIOException) {
+        throw (IOException) cause.getCause();
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+    if (result == null) {
+      return false;
+    }
+    if (result != struct) {
+      struct.name = result.name;
+      struct.time = result.time;
+      struct.data = result.data;
+    }
+    return true;
+  }
+
+  /**
+   * Returns {@code proc} as an asynchronous processor, whose {@link #processAsync} runs it on
+   * {@code executor}. The other methods are called on the caller's thread.
+   */
+  static AsyncJarProcessor of(JarProcessor proc, Executor executor) {
+    return new ExecutorJarProcessor(proc, executor);
+  }
+
+  /**
+   * Returns a future for {@code proc} processing {@code struct}: its own if it is an {@link
+   * AsyncJarProcessor}, or one that completes on the caller's thread otherwise.
+   */
+  static CompletableFuture<EntryStruct> processAsync(JarProcessor proc, EntryStruct struct) {
+    if (proc instanceof AsyncJarProcessor) {
+      return ((AsyncJarProcessor) proc).processAsync(struct);
+    }
+    try {
+      return CompletableFuture.completedFuture(proc.process(struct) ? struct : null);
+    } catch (IOException | RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A chain of processors, some of which may be asynchronous. Each processor gets the entry once the
+ * previous one completed it, without a thread waiting in between; synchronous processors run on
+ * the thread that completed the previous one.
+ */
+public class AsyncJarProcessorChain extends JarProcessorChain implements AsyncJarProcessor {
+  private final JarProcessor[] chain;
+
+  public AsyncJarProcessorChain(JarProcessor[] chain) {
+    super(chain);
+    this.chain = chain.clone();
+  }
+
+  @Override
+  public CompletableFuture<EntryStruct> processAsync(EntryStruct struct) {
+    return processAsync(struct, 0);
+  }
+
+  /** Runs the processors from {@code start} on that apply to the entry. */
+  private CompletableFuture<EntryStruct> processAsync(EntryStruct struct, int start) {
+    int i = next(struct.name, start);
+    if (i == chain.length) {
+      return CompletableFuture.completedFuture(struct);
+    }
+    return AsyncJarProcessor.processAsync(chain[i], struct)
+        .thenCompose(
+            (entry) ->
+                (entry != null)
+                    ? processAsync(entry, i + 1)
+                    : CompletableFuture.completedFuture(null));
+  }
+}
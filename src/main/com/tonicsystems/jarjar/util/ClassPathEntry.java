@@ -25,4 +25,11 @@ public interface ClassPathEntry {
   String getName();
 
   InputStream openStream() throws IOException;
+
+  /** Returns the whole content of the entry, which may save going through a stream. */
+  default byte[] readAllBytes() throws IOException {
+    try (InputStream in = openStream()) {
+      return in.readAllBytes();
+    }
+  }
 }
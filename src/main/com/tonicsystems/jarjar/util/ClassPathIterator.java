@@ -24,14 +24,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
-import java.util.jar.JarFile;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class ClassPathIterator implements Iterator<ClassPathEntry> {
   private static final FileFilter CLASS_FILTER =
@@ -53,7 +49,7 @@ public class ClassPathIterator implements Iterator<ClassPathEntry> {
   private final Iterator<File> files;
   private Iterator<ClassPathEntry> entries = Collections.emptyIterator();
   private ClassPathEntry next;
-  private final List<ZipFile> zips = new ArrayList<>();
+  private final List<ZipReader> zips = new ArrayList<>();
 
   public ClassPathIterator(String classPath) throws IOException {
     this(new File(System.getProperty("user.dir")), classPath, null);
@@ -107,7 +103,7 @@ public class ClassPathIterator implements Iterator<ClassPathEntry> {
   /** Closes all zip files opened by this iterator. */
   public void close() throws IOException {
     next = null;
-    for (ZipFile zip : zips) {
+    for (ZipReader zip : zips) {
       zip.close();
     }
   }
@@ -138,12 +134,8 @@ public class ClassPathIterator implements Iterator<ClassPathEntry> {
         return;
       }
       File file = files.next();
-      if (hasExtension(file.getName(), ".jar")) {
-        ZipFile zip = new JarFile(file);
-        zips.add(zip);
-        entries = new ZipIterator(zip);
-      } else if (hasExtension(file.getName(), ".zip")) {
-        ZipFile zip = new ZipFile(file);
+      if (hasExtension(file.getName(), ".jar") || hasExtension(file.getName(), ".zip")) {
+        ZipReader zip = new ZipReader(file);
         zips.add(zip);
         entries = new ZipIterator(zip);
       } else if (file.isDirectory()) {
@@ -164,17 +156,17 @@ public class ClassPathIterator implements Iterator<ClassPathEntry> {
   }
 
   private static class ZipIterator implements Iterator<ClassPathEntry> {
-    private final ZipFile zip;
-    private final Enumeration<? extends ZipEntry> entries;
+    private final ZipReader zip;
+    private final Iterator<ZipReader.Entry> entries;
 
-    ZipIterator(ZipFile zip) {
+    ZipIterator(ZipReader zip) {
       this.zip = zip;
-      this.entries = zip.entries();
+      this.entries = zip.entries().iterator();
     }
 
     @Override
     public boolean hasNext() {
-      return entries.hasMoreElements();
+      return entries.hasNext();
     }
 
     @Override
@@ -184,21 +176,26 @@ public class ClassPathIterator implements Iterator<ClassPathEntry> {
 
     @Override
     public ClassPathEntry next() {
-      final ZipEntry entry = entries.nextElement();
+      final ZipReader.Entry entry = entries.next();
       return new ClassPathEntry() {
         @Override
         public String getSource() {
-          return zip.getName();
+          return zip.getFile().getPath();
         }
 
         @Override
         public String getName() {
-          return entry.getName();
+          return entry.name;
         }
 
         @Override
         public InputStream openStream() throws IOException {
-          return zip.getInputStream(entry);
+          return zip.openStream(entry);
+        }
+
+        @Override
+        public byte[] readAllBytes() throws IOException {
+          return zip.read(entry);
         }
       };
     }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tells whether a class file could be affected by rules matching names with known prefixes,
+ * without parsing more of it than the constant pool.
+ *
+ * <p>Every name a class refers to, whether as a type, in a descriptor or signature, or in a string
+ * constant, is part of a {@code CONSTANT_Utf8} entry. If none of these entries contains one of the
+ * prefixes, in internal or in dotted form, no rule can apply to the class.
+ */
+public final class ConstantPoolFilter {
+  private final byte[][][] needles = new byte[256][][];
+
+  private ConstantPoolFilter(Set<String> prefixes) {
+    List<List<byte[]>> byFirstByte = new ArrayList<>();
+    for (int i = 0; i < 256; i++) {
+      byFirstByte.add(new ArrayList<>());
+    }
+    for (String prefix : prefixes) {
+      byte[] bytes = encode(prefix);
+      byFirstByte.get(bytes[0] & 0xFF).add(bytes);
+    }
+    for (int i = 0; i < 256; i++) {
+      if (!byFirstByte.get(i).isEmpty()) {
+        needles[i] = byFirstByte.get(i).toArray(new byte[0][]);
+      }
+    }
+  }
+
+  /**
+   * Returns a filter for rules whose patterns start with the given literal prefixes, in internal
+   * form, or null if the prefixes do not rule out any class.
+   *
+   * <p>Names of resources are matched with their last component replaced, so prefixes are only
+   * used up to their last "/". A prefix without any "/" could match anything.
+   */
+  public static ConstantPoolFilter forPrefixes(Collection<String> prefixes) {
+    Set<String> truncated = new LinkedHashSet<>();
+    for (String prefix : prefixes) {
+      int slash = prefix.lastIndexOf('/');
+      if (slash < 0) {
+        return null;
+      }
+      String packagePrefix = prefix.substring(0, slash + 1);
+      truncated.add(packagePrefix);
+      truncated.add(packagePrefix.replace('/', '.'));
+    }
+    return new ConstantPoolFilter(truncated);
+  }
+
+  /**
+   * Returns false if no {@code CONSTANT_Utf8} entry of the class contains any of the prefixes.
+   * Returns true if one does, and for anything that cannot be parsed as a class file.
+   */
+  public boolean mayMatch(byte[] b) {
+    try {
+      if (readInt(b, 0) != 0xCAFEBABE) {
+        return true;
+      }
+      int constantPoolCount = readUnsignedShort(b, 8);
+      int index = 10;
+      for (int i = 1; i < constantPoolCount; i++) {
+        int tag = b[index];
+        switch (tag) {
+          case 1: // Utf8
+            int length = readUnsignedShort(b, index + 1);
+            if (contains(b, index + 3, index + 3 + length)) {
+              return true;
+            }
+            index += 3 + length;
+            break;
+          case 3: // Integer
+          case 4: // Float
+          case 9: // Fieldref
+          case 10: // Methodref
+          case 11: // InterfaceMethodref
+          case 12: // NameAndType
+          case 17: // Dynamic
+          case 18: // InvokeDynamic
+            index += 5;
+            break;
+          case 5: // Long
+          case 6: // Double
+            index += 9;
+            i++;
+            break;
+          case 7: // Class
+          case 8: // String
+          case 16: // MethodType
+          case 19: // Module
+          case 20: // Package
+            index += 3;
+            break;
+          case 15: // MethodHandle
+            index += 4;
+            break;
+          default:
+            return true;
+        }
+      }
+      return false;
+    } catch (ArrayIndexOutOfBoundsException e) {
+      return true;
+    }
+  }
+
+  private boolean contains(byte[] b, int start, int end) {
+    for (int i = start; i < end; i++) {
+      byte[][] candidates = needles[b[i] & 0xFF];
+      if (candidates == null) {
+        continue;
+      }
+      for (byte[] needle : candidates) {
+        if (regionMatches(b, i, end, needle)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean regionMatches(byte[] b, int offset, int end, byte[] needle) {
+    if (end - offset < needle.length) {
+      return false;
+    }
+    for (int j = 1; j < needle.length; j++) {
+      if (b[offset + j] != needle[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Encodes the string the way class files do, in modified UTF-8. */
+  static byte[] encode(String s) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        out.write(c);
+      } else if (c <= 0x07FF) {
+        out.write(0xC0 | (c >> 6));
+        out.write(0x80 | (c & 0x3F));
+      } else {
+        out.write(0xE0 | (c >> 12));
+        out.write(0x80 | ((c >> 6) & 0x3F));
+        out.write(0x80 | (c & 0x3F));
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static int readUnsignedShort(byte[] b, int index) {
+    return ((b[index] & 0xFF) << 8) | (b[index + 1] & 0xFF);
+  }
+
+  private static int readInt(byte[] b, int index) {
+    return (readUnsignedShort(b, index) << 16) | readUnsignedShort(b, index + 2);
+  }
+}
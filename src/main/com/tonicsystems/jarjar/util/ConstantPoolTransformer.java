@@ -0,0 +1,638 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.commons.Remapper;
+
+/**
+ * Remaps classes by rewriting the {@code CONSTANT_Utf8} entries of their constant pool, copying
+ * every other byte of the class file as it is.
+ *
+ * <p>This gives the same classes as {@link RemappingClassTransformer} for remappers that only
+ * rename types and string constants, like package relocation does, without reading and writing
+ * every method with ASM. Field and method names are kept as they are.
+ *
+ * <p>The same {@code CONSTANT_Utf8} entry can be used in several ways, say as a class name and as
+ * the name of a field, and the remapper may map these uses differently. Uses that disagree with
+ * how the entry is rewritten get a new entry, appended to the constant pool. If the constant pool
+ * would become too large, or if the class cannot be parsed, the class is passed to the fallback
+ * processor instead.
+ */
+public final class ConstantPoolTransformer implements JarProcessor {
+  private final Remapper remapper;
+  private final ConstantPoolFilter filter;
+  private final JarProcessor fallback;
+
+  /**
+   * @param filter rules out classes the remapper cannot change, or null to transform every class
+   * @param fallback processes the classes that cannot be remapped in place
+   */
+  public ConstantPoolTransformer(
+      Remapper remapper, ConstantPoolFilter filter, JarProcessor fallback) {
+    this.remapper = remapper;
+    this.filter = filter;
+    this.fallback = fallback;
+  }
+
+  @Override
+  public boolean process(EntryStruct struct) throws IOException {
+    if (!struct.isClass() || (filter != null && !filter.mayMatch(struct.data))) {
+      return true;
+    }
+    ClassRewriter rewriter = new ClassRewriter(struct.data, remapper);
+    try {
+      rewriter.parse();
+    } catch (RuntimeException e) {
+      return fallback.process(struct);
+    }
+    if (rewriter.isUnchanged()) {
+      return true;
+    }
+    byte[] data = rewriter.write();
+    if (data == null) {
+      return fallback.process(struct);
+    }
+    struct.data = data;
+    struct.name = JarTransformer.replaceName(struct.name, rewriter.getClassName());
+    return true;
+  }
+
+  @Override
+  public Set<EntryKind> getKinds() {
+    return EnumSet.of(EntryKind.CLASS);
+  }
+
+  /** The state for rewriting a single class. */
+  private static final class ClassRewriter {
+    private static final int MAX_CONSTANT_POOL_COUNT = 0xFFFF;
+
+    private final byte[] b;
+    private final Remapper remapper;
+
+    // The offset of each constant pool entry's tag, and the end of the constant pool
+    private int[] offsets;
+    private int constantPoolEnd;
+    private String[] strings;
+
+    // Every place that refers to a CONSTANT_Utf8 entry, and the value it should refer to
+    private int[] refPositions = new int[64];
+    private String[] refValues = new String[64];
+    private int refCount;
+
+    ClassRewriter(byte[] b, Remapper remapper) {
+      this.b = b;
+      this.remapper = remapper;
+    }
+
+    /** Returns the internal name of the class after remapping. */
+    String getClassName() {
+      return remapper.mapType(readClass(constantPoolEnd + 2));
+    }
+
+    boolean isUnchanged() {
+      for (int i = 0; i < refCount; i++) {
+        if (!refValues[i].equals(strings[readUnsignedShort(refPositions[i])])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void parse() {
+      if (readInt(0) != 0xCAFEBABE) {
+        throw new IllegalArgumentException("Bad magic number");
+      }
+      parseConstantPool();
+
+      int index = constantPoolEnd + 6;
+      index += 2 + 2 * readUnsignedShort(index);
+      int fieldCount = readUnsignedShort(index);
+      index += 2;
+      for (int i = 0; i < fieldCount; i++) {
+        keepRef(index + 2);
+        addRef(index + 4, remapper.mapDesc(utf8(index + 4)));
+        index = parseAttributes(index + 6, Context.FIELD);
+      }
+      int methodCount = readUnsignedShort(index);
+      index += 2;
+      for (int i = 0; i < methodCount; i++) {
+        keepRef(index + 2);
+        addRef(index + 4, remapper.mapMethodDesc(utf8(index + 4)));
+        index = parseAttributes(index + 6, Context.METHOD);
+      }
+      parseAttributes(index, Context.CLASS);
+    }
+
+    private void parseConstantPool() {
+      int count = readUnsignedShort(8);
+      offsets = new int[count];
+      strings = new String[count];
+      int index = 10;
+      for (int i = 1; i < count; i++) {
+        offsets[i] = index;
+        switch (b[index]) {
+          case 1: // Utf8
+            int length = readUnsignedShort(index + 1);
+            strings[i] = readUtf8(index + 3, length);
+            index += 3 + length;
+            break;
+          case 3: // Integer
+          case 4: // Float
+          case 9: // Fieldref
+          case 10: // Methodref
+          case 11: // InterfaceMethodref
+          case 12: // NameAndType
+          case 17: // Dynamic
+          case 18: // InvokeDynamic
+            index += 5;
+            break;
+          case 5: // Long
+          case 6: // Double
+            index += 9;
+            i++;
+            break;
+          case 7: // Class
+          case 8: // String
+          case 16: // MethodType
+          case 19: // Module
+          case 20: // Package
+            index += 3;
+            break;
+          case 15: // MethodHandle
+            index += 4;
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown constant pool tag " + b[index]);
+        }
+      }
+      constantPoolEnd = index;
+
+      for (int i = 1; i < count; i++) {
+        int offset = offsets[i];
+        if (offset == 0) {
+          continue; // the unused slot after a Long or Double
+        }
+        switch (b[offset]) {
+          case 7: // Class
+            addRef(offset + 1, remapper.mapType(utf8(offset + 1)));
+            break;
+          case 8: // String
+            addRef(offset + 1, (String) remapper.mapValue(utf8(offset + 1)));
+            break;
+          case 12: // NameAndType
+            keepRef(offset + 1);
+            addDescriptorRef(offset + 3);
+            break;
+          case 16: // MethodType
+            addRef(offset + 1, remapper.mapMethodDesc(utf8(offset + 1)));
+            break;
+          case 19: // Module
+            addRef(offset + 1, remapper.mapModuleName(utf8(offset + 1)));
+            break;
+          case 20: // Package
+            addRef(offset + 1, remapper.mapPackageName(utf8(offset + 1)));
+            break;
+          default:
+            break;
+        }
+      }
+    }
+
+    private enum Context {
+      CLASS,
+      FIELD,
+      METHOD,
+      CODE,
+      RECORD_COMPONENT
+    }
+
+    /** Records the references made by a list of attributes, returning the offset after it. */
+    private int parseAttributes(int index, Context context) {
+      int count = readUnsignedShort(index);
+      index += 2;
+      for (int i = 0; i < count; i++) {
+        String name = utf8(index);
+        keepRef(index);
+        int length = readInt(index + 2);
+        int start = index + 6;
+        parseAttribute(name, start, context);
+        index = start + length;
+      }
+      return index;
+    }
+
+    private void parseAttribute(String name, int index, Context context) {
+      switch (name) {
+        case "Signature":
+          {
+            // Classes and methods have generic declarations, fields and record components types
+            boolean type = (context == Context.FIELD || context == Context.RECORD_COMPONENT);
+            addRef(index, remapper.mapSignature(utf8(index), type));
+            break;
+          }
+        case "SourceFile":
+          keepRef(index);
+          break;
+        case "Code":
+          {
+            int codeLength = readInt(index + 4);
+            int exceptionTable = index + 8 + codeLength;
+            parseAttributes(
+                exceptionTable + 2 + 8 * readUnsignedShort(exceptionTable), Context.CODE);
+            break;
+          }
+        case "LocalVariableTable":
+        case "LocalVariableTypeTable":
+          {
+            boolean types = name.equals("LocalVariableTypeTable");
+            int count = readUnsignedShort(index);
+            for (int i = 0, entry = index + 2; i < count; i++, entry += 10) {
+              keepRef(entry + 4);
+              String value = utf8(entry + 6);
+              addRef(
+                  entry + 6,
+                  types ? remapper.mapSignature(value, true) : remapper.mapDesc(value));
+            }
+            break;
+          }
+        case "InnerClasses":
+          {
+            int count = readUnsignedShort(index);
+            for (int i = 0, entry = index + 2; i < count; i++, entry += 8) {
+              if (readUnsignedShort(entry + 4) != 0) {
+                String outerName =
+                    (readUnsignedShort(entry + 2) == 0) ? null : readClass(entry + 2);
+                addRef(
+                    entry + 4,
+                    remapper.mapInnerClassName(readClass(entry), outerName, utf8(entry + 4)));
+              }
+            }
+            break;
+          }
+        case "MethodParameters":
+          {
+            int count = b[index] & 0xFF;
+            for (int i = 0, entry = index + 1; i < count; i++, entry += 4) {
+              if (readUnsignedShort(entry) != 0) {
+                keepRef(entry);
+              }
+            }
+            break;
+          }
+        case "Record":
+          {
+            int count = readUnsignedShort(index);
+            int entry = index + 2;
+            for (int i = 0; i < count; i++) {
+              keepRef(entry);
+              addRef(entry + 2, remapper.mapDesc(utf8(entry + 2)));
+              entry = parseAttributes(entry + 4, Context.RECORD_COMPONENT);
+            }
+            break;
+          }
+        case "RuntimeVisibleAnnotations":
+        case "RuntimeInvisibleAnnotations":
+          parseAnnotations(index + 2, readUnsignedShort(index));
+          break;
+        case "RuntimeVisibleParameterAnnotations":
+        case "RuntimeInvisibleParameterAnnotations":
+          {
+            int parameters = b[index] & 0xFF;
+            int entry = index + 1;
+            for (int i = 0; i < parameters; i++) {
+              entry = parseAnnotations(entry + 2, readUnsignedShort(entry));
+            }
+            break;
+          }
+        case "RuntimeVisibleTypeAnnotations":
+        case "RuntimeInvisibleTypeAnnotations":
+          {
+            int count = readUnsignedShort(index);
+            int entry = index + 2;
+            for (int i = 0; i < count; i++) {
+              entry = skipTypeAnnotationTarget(entry);
+              entry = parseAnnotation(entry);
+            }
+            break;
+          }
+        case "AnnotationDefault":
+          parseElementValue(index);
+          break;
+        default:
+          // Other attributes do not refer to CONSTANT_Utf8 entries that need remapping
+          break;
+      }
+    }
+
+    private int parseAnnotations(int index, int count) {
+      for (int i = 0; i < count; i++) {
+        index = parseAnnotation(index);
+      }
+      return index;
+    }
+
+    private int parseAnnotation(int index) {
+      addRef(index, remapper.mapDesc(utf8(index)));
+      int pairs = readUnsignedShort(index + 2);
+      index += 4;
+      for (int i = 0; i < pairs; i++) {
+        keepRef(index);
+        index = parseElementValue(index + 2);
+      }
+      return index;
+    }
+
+    private int parseElementValue(int index) {
+      int tag = b[index];
+      index++;
+      switch (tag) {
+        case 's':
+          addRef(index, (String) remapper.mapValue(utf8(index)));
+          return index + 2;
+        case 'e':
+          addRef(index, remapper.mapDesc(utf8(index)));
+          keepRef(index + 2);
+          return index + 4;
+        case 'c':
+          addRef(index, remapper.mapDesc(utf8(index)));
+          return index + 2;
+        case '@':
+          return parseAnnotation(index);
+        case '[':
+          {
+            int count = readUnsignedShort(index);
+            index += 2;
+            for (int i = 0; i < count; i++) {
+              index = parseElementValue(index);
+            }
+            return index;
+          }
+        default:
+          return index + 2;
+      }
+    }
+
+    private int skipTypeAnnotationTarget(int index) {
+      int targetType = b[index] & 0xFF;
+      index++;
+      switch (targetType) {
+        case 0x00:
+        case 0x01:
+        case 0x16:
+          index += 1;
+          break;
+        case 0x13:
+        case 0x14:
+        case 0x15:
+          break;
+        case 0x40:
+        case 0x41:
+          index += 2 + 6 * readUnsignedShort(index);
+          break;
+        case 0x47:
+        case 0x48:
+        case 0x49:
+        case 0x4A:
+        case 0x4B:
+          index += 3;
+          break;
+        default:
+          index += 2;
+          break;
+      }
+      // type_path
+      return index + 1 + 2 * (b[index] & 0xFF);
+    }
+
+    private void keepRef(int position) {
+      addRef(position, utf8(position));
+    }
+
+    private void addDescriptorRef(int position) {
+      String descriptor = utf8(position);
+      addRef(
+          position,
+          descriptor.startsWith("(")
+              ? remapper.mapMethodDesc(descriptor)
+              : remapper.mapDesc(descriptor));
+    }
+
+    private void addRef(int position, String value) {
+      if (refCount == refPositions.length) {
+        refPositions = Arrays.copyOf(refPositions, refCount * 2);
+        refValues = Arrays.copyOf(refValues, refCount * 2);
+      }
+      refPositions[refCount] = position;
+      refValues[refCount] = value;
+      refCount++;
+    }
+
+    /**
+     * Returns the class file with the remapped constants, or null if the constant pool would have
+     * too many entries or an entry would be too long.
+     */
+    byte[] write() {
+      // An entry is rewritten in place if all its uses agree on the new value, which is the case
+      // unless the same text is used in more than one way
+      int count = offsets.length;
+      String[] values = strings.clone();
+      boolean[] conflicting = new boolean[count];
+      boolean[] assigned = new boolean[count];
+      for (int i = 0; i < refCount; i++) {
+        int index = readUnsignedShort(refPositions[i]);
+        if (!assigned[index]) {
+          values[index] = refValues[i];
+          assigned[index] = true;
+        } else if (!values[index].equals(refValues[i])) {
+          conflicting[index] = true;
+        }
+      }
+      for (int i = 1; i < count; i++) {
+        if (conflicting[i]) {
+          values[i] = strings[i];
+        }
+      }
+
+      // Uses that disagree with the value of their entry get a new entry
+      int[] newIndices = new int[refCount];
+      Map<String, Integer> appended = new LinkedHashMap<>();
+      Map<String, Integer> existing = new HashMap<>();
+      for (int i = 1; i < count; i++) {
+        if (values[i] != null) {
+          existing.putIfAbsent(values[i], i);
+        }
+      }
+      for (int i = 0; i < refCount; i++) {
+        int index = readUnsignedShort(refPositions[i]);
+        String value = refValues[i];
+        if (values[index].equals(value)) {
+          newIndices[i] = index;
+        } else {
+          Integer newIndex = existing.get(value);
+          if (newIndex == null) {
+            newIndex = count + appended.size();
+            appended.put(value, newIndex);
+            existing.put(value, newIndex);
+          }
+          newIndices[i] = newIndex;
+        }
+      }
+      if (count + appended.size() > MAX_CONSTANT_POOL_COUNT) {
+        return null;
+      }
+
+      for (int i = 1; i < count; i++) {
+        if (values[i] != null && values[i] != strings[i] && !fitsUtf8(values[i])) {
+          return null;
+        }
+      }
+      for (String value : appended.keySet()) {
+        if (!fitsUtf8(value)) {
+          return null;
+        }
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(b.length + 256);
+      out.write(b, 0, 8);
+      writeShort(out, count + appended.size());
+      int[] newOffsets = new int[count];
+      for (int i = 1; i < count; i++) {
+        int offset = offsets[i];
+        if (offset == 0) {
+          continue; // the unused slot after a Long or Double
+        }
+        newOffsets[i] = out.size();
+        if (b[offset] == 1) {
+          writeUtf8(out, values[i]);
+        } else {
+          out.write(b, offset, entryEnd(i) - offset);
+        }
+      }
+      for (String value : appended.keySet()) {
+        writeUtf8(out, value);
+      }
+      int delta = out.size() - constantPoolEnd;
+      out.write(b, constantPoolEnd, b.length - constantPoolEnd);
+
+      byte[] result = out.toByteArray();
+      for (int i = 0; i < refCount; i++) {
+        int position = refPositions[i];
+        int newPosition;
+        if (position < constantPoolEnd) {
+          int entry = findEntry(position);
+          newPosition = newOffsets[entry] + (position - offsets[entry]);
+        } else {
+          newPosition = position + delta;
+        }
+        result[newPosition] = (byte) (newIndices[i] >>> 8);
+        result[newPosition + 1] = (byte) newIndices[i];
+      }
+      return result;
+    }
+
+    /** Returns the constant pool entry that contains the given offset. */
+    private int findEntry(int position) {
+      int low = 1;
+      int high = offsets.length - 1;
+      while (low < high) {
+        int mid = (low + high + 1) >>> 1;
+        int offset = offsets[mid];
+        if (offset == 0) {
+          offset = offsets[mid - 1]; // the unused slot after a Long or Double
+        }
+        if (offset <= position) {
+          low = mid;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return (offsets[low] == 0) ? low - 1 : low;
+    }
+
+    private int entryEnd(int index) {
+      for (int i = index + 1; i < offsets.length; i++) {
+        if (offsets[i] != 0) {
+          return offsets[i];
+        }
+      }
+      return constantPoolEnd;
+    }
+
+    private String utf8(int position) {
+      String value = strings[readUnsignedShort(position)];
+      if (value == null) {
+        throw new IllegalArgumentException("Not a CONSTANT_Utf8 entry at " + position);
+      }
+      return value;
+    }
+
+    private String readClass(int position) {
+      return utf8(offsets[readUnsignedShort(position)] + 1);
+    }
+
+    private String readUtf8(int index, int length) {
+      char[] chars = new char[length];
+      int count = 0;
+      int end = index + length;
+      while (index < end) {
+        int c = b[index++] & 0xFF;
+        if (c < 0x80) {
+          chars[count++] = (char) c;
+        } else if (c < 0xE0) {
+          chars[count++] = (char) (((c & 0x1F) << 6) | (b[index++] & 0x3F));
+        } else {
+          chars[count++] =
+              (char) (((c & 0x0F) << 12) | ((b[index++] & 0x3F) << 6) | (b[index++] & 0x3F));
+        }
+      }
+      return new String(chars, 0, count);
+    }
+
+    private int readUnsignedShort(int index) {
+      return ((b[index] & 0xFF) << 8) | (b[index + 1] & 0xFF);
+    }
+
+    private int readInt(int index) {
+      return (readUnsignedShort(index) << 16) | readUnsignedShort(index + 2);
+    }
+
+    private static boolean fitsUtf8(String value) {
+      // Every char takes at most three bytes
+      return value.length() <= 0xFFFF / 3 || ConstantPoolFilter.encode(value).length <= 0xFFFF;
+    }
+
+    private static void writeUtf8(ByteArrayOutputStream out, String value) {
+      byte[] bytes = ConstantPoolFilter.encode(value);
+      out.write(1);
+      writeShort(out, bytes.length);
+      out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+      out.write(value >>> 8);
+      out.write(value);
+    }
+  }
+}
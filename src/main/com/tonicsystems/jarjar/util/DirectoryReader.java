@@ -0,0 +1,102 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Reads the files under a directory as if they were the entries of a jar, such as the classes
+ * directory of a build, named by their path relative to the directory with '/' separators.
+ * Subdirectories are listed too, with a trailing '/'.
+ *
+ * <p>Files have no compressed form: their entries are {@link ZipReader#STORED}, with a checksum of
+ * -1 since it is only known once they are read, so they are never copied as they are.
+ */
+final class DirectoryReader implements EntryReader {
+  private final Path root;
+  private final List<ZipReader.Entry> entries;
+
+  DirectoryReader(File dir) throws IOException {
+    this.root = dir.toPath();
+    List<ZipReader.Entry> list = new ArrayList<>();
+    try (Stream<Path> stream = Files.walk(root, FileVisitOption.FOLLOW_LINKS)) {
+      for (Path path : (Iterable<Path>) stream::iterator) {
+        if (path.equals(root)) {
+          continue;
+        }
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        StringBuilder name = new StringBuilder();
+        for (Path part : root.relativize(path)) {
+          if (name.length() > 0) {
+            name.append('/');
+          }
+          name.append(part);
+        }
+        long size = 0;
+        if (attrs.isDirectory()) {
+          name.append('/');
+        } else if (attrs.isRegularFile()) {
+          size = attrs.size();
+        } else {
+          continue;
+        }
+        list.add(
+            new ZipReader.Entry(
+                name.toString(),
+                ZipReader.STORED,
+                -1,
+                size,
+                size,
+                -1,
+                attrs.lastModifiedTime().toMillis()));
+      }
+    }
+    list.sort(Comparator.comparing((entry) -> entry.name));
+    this.entries = Collections.unmodifiableList(list);
+  }
+
+  @Override
+  public List<ZipReader.Entry> entries() {
+    return entries;
+  }
+
+  @Override
+  public byte[] read(ZipReader.Entry entry) throws IOException {
+    if (entry.isDirectory()) {
+      return new byte[0];
+    }
+    return Files.readAllBytes(root.resolve(entry.name));
+  }
+
+  @Override
+  public byte[] readRaw(ZipReader.Entry entry) throws IOException {
+    return read(entry);
+  }
+
+  @Override
+  public void close() {}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A directory of processed entries, keyed by a hash of everything their processing depends on, so
+ * that later runs can skip entries they already processed.
+ *
+ * <p>Each result is a file of its own. It is written to a temporary file and then renamed, so that
+ * readers never see partial results, and any number of processes may use the same directory. A
+ * result that cannot be read is treated as missing.
+ *
+ * <p>Results that are read have their modification time updated. When the cache is closed, the
+ * least recently used results are deleted until the directory fits in its size limit.
+ */
+public final class EntryCache implements Closeable {
+  private static final int MAGIC = 0x4A4A4301; // "JJC" and the format version
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String LOCK_FILE = "lock";
+  private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000L;
+
+  /** What processing an entry produced. */
+  public static final class Result {
+    /** The name of the output entry, or null if the entry was dropped. */
+    public final String name;
+
+    /** The data of the output entry, or null if it was the same as the input. */
+    public final byte[] data;
+
+    public Result(String name, byte[] data) {
+      this.name = name;
+      this.data = data;
+    }
+  }
+
+  private final Path dir;
+  private final long maxSize;
+
+  /**
+   * @param dir the directory holding the results, created if needed
+   * @param maxSize how many bytes of results to keep when the cache is closed
+   */
+  public EntryCache(File dir, long maxSize) throws IOException {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("maxSize must not be negative: " + maxSize);
+    }
+    this.dir = dir.toPath();
+    this.maxSize = maxSize;
+    Files.createDirectories(this.dir);
+  }
+
+  /**
+   * Returns the key of an entry, from its name and data and a {@code salt} that stands for
+   * everything else its processing depends on.
+   */
+  public static byte[] key(byte[] salt, String name, byte[] data) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    digest.update(salt);
+    byte[] nameBytes = name.getBytes(UTF_8);
+    digest.update(intBytes(nameBytes.length));
+    digest.update(nameBytes);
+    digest.update(data);
+    return digest.digest();
+  }
+
+  private static byte[] intBytes(int v) {
+    return new byte[] {(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+  }
+
+  /** Returns the result stored for {@code key}, or null if there is none. */
+  public Result get(byte[] key) {
+    Path file = path(key);
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(file);
+    } catch (IOException e) {
+      return null; // missing, or deleted by an eviction
+    }
+    Result result;
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      if (in.readInt() != MAGIC) {
+        return null;
+      }
+      String name = in.readBoolean() ? in.readUTF() : null;
+      int length = in.readInt();
+      byte[] data = null;
+      if (length >= 0) {
+        data = new byte[length];
+        in.readFully(data);
+      }
+      if (in.read() >= 0) {
+        return null;
+      }
+      result = new Result(name, data);
+    } catch (IOException e) {
+      return null;
+    }
+    try {
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // Only the eviction order suffers
+    }
+    return result;
+  }
+
+  /** Stores the result for {@code key}, unless one is already stored. */
+  public void put(byte[] key, Result result) throws IOException {
+    Path file = path(key);
+    if (Files.exists(file)) {
+      return;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeBoolean(result.name != null);
+      if (result.name != null) {
+        out.writeUTF(result.name);
+      }
+      if (result.data != null) {
+        out.writeInt(result.data.length);
+        out.write(result.data);
+      } else {
+        out.writeInt(-1);
+      }
+    }
+
+    Files.createDirectories(file.getParent());
+    Path temp = Files.createTempFile(file.getParent(), "entry", TEMP_SUFFIX);
+    try {
+      Files.write(temp, bytes.toByteArray());
+      try {
+        // Replaces a result stored at the same time, which is the same
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file);
+      }
+    } catch (FileAlreadyExistsException e) {
+      // Another process stored the same result first
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private Path path(byte[] key) {
+    StringBuilder hex = new StringBuilder(key.length * 2);
+    for (byte b : key) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return dir.resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+  }
+
+  /**
+   * Deletes the least recently used results until the cache fits in its size limit. If another
+   * process is already doing so, this returns without waiting.
+   */
+  @Override
+  public void close() throws IOException {
+    try (FileChannel lockChannel =
+            FileChannel.open(
+                dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = tryLock(lockChannel)) {
+      if (lock != null) {
+        evict();
+      }
+    }
+  }
+
+  private static FileLock tryLock(FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      return null; // held by another cache in this JVM
+    }
+  }
+
+  private void evict() throws IOException {
+    long now = System.currentTimeMillis();
+    List<Path> files = new ArrayList<>();
+    List<BasicFileAttributes> attributes = new ArrayList<>();
+    long total = 0;
+    try (Stream<Path> stream = Files.walk(dir, 2)) {
+      for (Path file : (Iterable<Path>) stream::iterator) {
+        if (file.getNameCount() - dir.getNameCount() != 2) {
+          continue;
+        }
+        BasicFileAttributes attrs;
+        try {
+          attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+          continue;
+        }
+        if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+          // Left behind by a writer that did not finish
+          if (now - attrs.lastModifiedTime().toMillis() > STALE_TEMP_MILLIS) {
+            Files.deleteIfExists(file);
+          }
+          continue;
+        }
+        files.add(file);
+        attributes.add(attrs);
+        total += attrs.size();
+      }
+    }
+    if (total <= maxSize) {
+      return;
+    }
+
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < files.size(); i++) {
+      order.add(i);
+    }
+    order.sort(Comparator.comparing((Integer i) -> attributes.get(i).lastModifiedTime()));
+    for (int i : order) {
+      if (total <= maxSize) {
+        break;
+      }
+      Files.deleteIfExists(files.get(i));
+      total -= attributes.get(i).size();
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import java.util.Set;
+
+/**
+ * What a jar entry is, as far as processors care, so that a {@link JarProcessorChain} only hands
+ * entries to the processors that apply to them, see {@link JarProcessor#getKinds}.
+ *
+ * <p>An entry may be of several kinds, such as a class file in {@code META-INF/services/}.
+ */
+public enum EntryKind {
+  /** Entries whose name ends in {@code .class}, wherever they are. */
+  CLASS,
+  /** Entries in {@code META-INF/services/}. */
+  SERVICE,
+  /** The manifest, {@code META-INF/MANIFEST.MF} in any case. */
+  MANIFEST,
+  /** Entries that are not classes, including directories, services and the manifest. */
+  RESOURCE;
+
+  static final int ALL = (1 << values().length) - 1;
+
+  /** The directory of service provider files, which processors of {@link #SERVICE} rewrite. */
+  public static final String SERVICES_PREFIX = "META-INF/services/";
+  /** The name of the manifest, which processors of {@link #MANIFEST} match ignoring case. */
+  public static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+  /** Returns the kinds of the entry named {@code name}, as a bit per ordinal. */
+  static int mask(String name) {
+    int mask = name.endsWith(".class") ? 1 << CLASS.ordinal() : 1 << RESOURCE.ordinal();
+    if (name.startsWith(SERVICES_PREFIX)) {
+      mask |= 1 << SERVICE.ordinal();
+    }
+    if (name.equalsIgnoreCase(MANIFEST_NAME)) {
+      mask |= 1 << MANIFEST.ordinal();
+    }
+    return mask;
+  }
+
+  /** Returns {@code kinds} as a bit per ordinal. */
+  static int mask(Set<EntryKind> kinds) {
+    int mask = 0;
+    for (EntryKind kind : kinds) {
+      mask |= 1 << kind.ordinal();
+    }
+    return mask;
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/** The entries of a jar or of a directory, which may be read from several threads at once. */
+interface EntryReader extends Closeable {
+  List<ZipReader.Entry> entries();
+
+  /** Returns the uncompressed data of {@code entry}. */
+  byte[] read(ZipReader.Entry entry) throws IOException;
+
+  /** Returns the data of {@code entry} as it is compressed with its method. */
+  byte[] readRaw(ZipReader.Entry entry) throws IOException;
+}
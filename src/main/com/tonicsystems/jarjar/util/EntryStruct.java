@@ -16,12 +16,26 @@
 
 package com.tonicsystems.jarjar.util;
 
+import java.nio.ByteBuffer;
+
 /** A mutable representation of a JAR entry. */
 public final class EntryStruct {
   public byte[] data;
   public String name;
   public long time;
 
+  // The index of the input the entry was read from, among those of StandaloneJarProcessor.run
+  int input;
+
+  // The compressed data of the input entry, set when the processors left its data unchanged
+  ZipReader.Entry source;
+  byte[] compressed;
+
+  // Where the data was moved by SpillBuffer, off the heap or if it did not fit in memory
+  ByteBuffer offHeap;
+  long spillOffset = -1;
+  int spillLength;
+
   /** Returns true if the entry is a class file. */
   public boolean isClass() {
     if (!name.endsWith(".class")) {
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/** Runs a synchronous processor on an executor, see {@link AsyncJarProcessor#of}. */
+final class ExecutorJarProcessor implements AsyncJarProcessor {
+  private final JarProcessor proc;
+  private final Executor executor;
+
+  ExecutorJarProcessor(JarProcessor proc, Executor executor) {
+    this.proc = proc;
+    this.executor = executor;
+  }
+
+  @Override
+  public CompletableFuture<EntryStruct> processAsync(EntryStruct struct) {
+    return CompletableFuture.supplyAsync(
+        () -> {
+          try {
+            return proc.process(struct) ? struct : null;
+          } catch (IOException e) {
+            throw new RuntimeIOException(e);
+          }
+        },
+        executor);
+  }
+
+  @Override
+  public boolean process(EntryStruct struct) throws IOException {
+    return proc.process(struct);
+  }
+
+  @Override
+  public boolean accepts(String name) {
+    return proc.accepts(name);
+  }
+
+  @Override
+  public Set<EntryKind> getKinds() {
+    return proc.getKinds();
+  }
+
+  @Override
+  public Set<String> getExcludes() {
+    return proc.getExcludes();
+  }
+
+  @Override
+  public void excluded(String name) {
+    proc.excluded(name);
+  }
+
+  @Override
+  public byte[] getFingerprint() {
+    return proc.getFingerprint();
+  }
+
+  @Override
+  public void processUnchanged(EntryStruct struct, String outputName) throws IOException {
+    proc.processUnchanged(struct, outputName);
+  }
+
+  @Override
+  public boolean readsUnchanged() {
+    return proc.readsUnchanged();
+  }
+}
@@ -17,6 +17,7 @@
 package com.tonicsystems.jarjar.util;
 
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 
@@ -27,6 +28,14 @@ public class GetNameClassWriter extends ClassVisitor {
     super(Opcodes.ASM9, new ClassWriter(flags));
   }
 
+  /**
+   * Starts from the constant pool of {@code reader}. See
+   * {@link ClassWriter#ClassWriter(ClassReader, int)}.
+   */
+  public GetNameClassWriter(ClassReader reader, int flags) {
+    super(Opcodes.ASM9, new ClassWriter(reader, flags));
+  }
+
   @Override
   public void visit(
       int version,
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * What a run of {@link StandaloneJarProcessor} made of each input entry, kept next to the output
+ * jar so that the next run into the same jar can copy the output of the entries that did not
+ * change.
+ *
+ * <p>Input entries are matched by name, checksum and size, as listed in the central directories.
+ * The output of an entry is only reused if the previous output still holds it with the checksum
+ * and size recorded here, so an index that does not belong to the jar next to it only costs
+ * reprocessing.
+ */
+final class IncrementalIndex {
+  private static final int MAGIC = 0x4A4A4901; // "JJI" and the format version
+  private static final String SUFFIX = ".index";
+
+  /** An input entry and what became of it. */
+  static final class Record {
+    final String name;
+    final long crc;
+    final long size;
+
+    /** The name of the output entry, or null if the processors dropped the entry. */
+    final String outputName;
+
+    /** The checksum of the output entry, or -1 if it was not written. */
+    final long outputCrc;
+
+    /** The size of the output entry, or -1 if it was not written. */
+    final long outputSize;
+
+    Record(String name, long crc, long size, String outputName, long outputCrc, long outputSize) {
+      this.name = name;
+      this.crc = crc;
+      this.size = size;
+      this.outputName = outputName;
+      this.outputCrc = outputCrc;
+      this.outputSize = outputSize;
+    }
+
+    boolean isWritten() {
+      return outputSize >= 0;
+    }
+  }
+
+  private final byte[] fingerprint;
+  private final String compression;
+  private final Set<String> excludes;
+  private final List<Record> records;
+  private final Map<String, Record> byName = new HashMap<>();
+
+  /**
+   * @param fingerprint identifies the processors, see {@link JarProcessor#getFingerprint}
+   * @param compression how the output was compressed, which changes the copied data
+   * @param excludes the names the processors excluded after seeing all the entries
+   */
+  IncrementalIndex(
+      byte[] fingerprint, String compression, Set<String> excludes, List<Record> records) {
+    this.fingerprint = fingerprint.clone();
+    this.compression = compression;
+    this.excludes = Collections.unmodifiableSet(new HashSet<>(excludes));
+    this.records = records;
+    for (Record record : records) {
+      byName.put(record.name, record);
+    }
+  }
+
+  /** Returns the file holding the index of {@code jar}. */
+  static File fileFor(File jar) {
+    return new File(jar.getPath() + SUFFIX);
+  }
+
+  /** Returns true if the index was written by processors and settings like these. */
+  boolean matches(byte[] fingerprint, String compression) {
+    return Arrays.equals(this.fingerprint, fingerprint) && this.compression.equals(compression);
+  }
+
+  Set<String> getExcludes() {
+    return excludes;
+  }
+
+  /** Returns the record of an input entry with the same name, checksum and size, or null. */
+  Record find(ZipReader.Entry entry) {
+    Record record = byName.get(entry.name);
+    if (record == null || record.crc != entry.crc || record.size != entry.size) {
+      return null;
+    }
+    return record;
+  }
+
+  /** Returns the index in {@code file}, or null if there is none or it cannot be read. */
+  static IncrementalIndex read(File file) {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(file.toPath());
+    } catch (IOException e) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      if (in.readInt() != MAGIC) {
+        return null;
+      }
+      byte[] fingerprint = new byte[in.readUnsignedShort()];
+      in.readFully(fingerprint);
+      String compression = in.readUTF();
+      Set<String> excludes = new HashSet<>();
+      for (int i = in.readInt(); i > 0; i--) {
+        excludes.add(in.readUTF());
+      }
+      int count = in.readInt();
+      List<Record> records = new ArrayList<>(Math.min(count, bytes.length));
+      for (int i = 0; i < count; i++) {
+        String name = in.readUTF();
+        long crc = in.readLong();
+        long size = in.readLong();
+        String outputName = in.readBoolean() ? in.readUTF() : null;
+        records.add(new Record(name, crc, size, outputName, in.readLong(), in.readLong()));
+      }
+      if (in.read() >= 0) {
+        return null;
+      }
+      return new IncrementalIndex(fingerprint, compression, excludes, records);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /** Writes the index to {@code file}, replacing it at once. */
+  void write(File file) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeShort(fingerprint.length);
+      out.write(fingerprint);
+      out.writeUTF(compression);
+      out.writeInt(excludes.size());
+      for (String exclude : new TreeSet<>(excludes)) {
+        out.writeUTF(exclude);
+      }
+      out.writeInt(records.size());
+      for (Record record : records) {
+        out.writeUTF(record.name);
+        out.writeLong(record.crc);
+        out.writeLong(record.size);
+        out.writeBoolean(record.outputName != null);
+        if (record.outputName != null) {
+          out.writeUTF(record.outputName);
+        }
+        out.writeLong(record.outputCrc);
+        out.writeLong(record.outputSize);
+      }
+    }
+
+    Path target = file.getAbsoluteFile().toPath();
+    Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+    try {
+      Files.write(temp, bytes.toByteArray());
+      try {
+        Files.move(
+            temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+}
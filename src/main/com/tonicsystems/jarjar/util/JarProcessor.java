@@ -17,6 +17,9 @@
 package com.tonicsystems.jarjar.util;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
 
 public interface JarProcessor {
   /**
@@ -30,4 +33,69 @@ public interface JarProcessor {
    * @return <code>true</code> if he process chain can continue after this process
    */
   boolean process(EntryStruct struct) throws IOException;
+
+  /**
+   * Returns false if the processor drops the entry named {@code name} whatever its data, in which
+   * case the entry is left out without being read or passed to {@link #process}, so that it only
+   * costs a look at the central directory.
+   *
+   * @param name the name of the entry as read, before any processor renamed it
+   */
+  default boolean accepts(String name) {
+    return true;
+  }
+
+  /**
+   * Returns the kinds of entries that {@link #process} may change or drop. A {@link
+   * JarProcessorChain} passes the processor only entries of these kinds, with their name at that
+   * point of the chain, and leaves the others as they are.
+   */
+  default Set<EntryKind> getKinds() {
+    return EnumSet.allOf(EntryKind.class);
+  }
+
+  /**
+   * Returns the names of processed entries to leave out of the output, for decisions that need
+   * every entry to have been processed first. Called once all entries have been processed and
+   * before any is written.
+   *
+   * @return the names of the entries as they were after processing
+   */
+  default Set<String> getExcludes() {
+    return Collections.emptySet();
+  }
+
+  /**
+   * Called for each processed entry that is left out of the output because {@link #getExcludes}
+   * listed it, once per output written.
+   *
+   * @param name the name of the entry after processing
+   */
+  default void excluded(String name) {}
+
+  /**
+   * Returns bytes that stand for everything the processing of an entry depends on besides the
+   * entry itself, or null if that is not known. An incremental run reuses the output of an earlier
+   * run for unchanged entries only if the processors had the same fingerprint.
+   */
+  default byte[] getFingerprint() {
+    return null;
+  }
+
+  /**
+   * Called instead of {@link #process} for an entry whose output an incremental run reuses, so that
+   * processors that need to see every entry, for {@link #getExcludes}, still do.
+   *
+   * @param struct the entry as read, which must not be changed
+   * @param outputName the name of the entry after processing, or null if it was dropped
+   */
+  default void processUnchanged(EntryStruct struct, String outputName) throws IOException {}
+
+  /**
+   * Returns whether {@link #processUnchanged} looks at the data of the entry. If not, the entry is
+   * not inflated and its data is null.
+   */
+  default boolean readsUnchanged() {
+    return false;
+  }
 }
@@ -17,12 +17,39 @@
 package com.tonicsystems.jarjar.util;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
 
+/**
+ * Runs processors one after the other, as long as they keep the entry. Each processor only gets the
+ * entries of the {@link JarProcessor#getKinds kinds} it applies to, which the chain looks up once
+ * per entry, and again whenever a processor renames the entry.
+ */
 public class JarProcessorChain implements JarProcessor {
   private final JarProcessor[] chain;
 
+  // The indexes of the processors that apply to each combination of entry kinds
+  private final int[][] routes;
+
   public JarProcessorChain(JarProcessor[] chain) {
     this.chain = chain.clone();
+    int[] kinds = new int[chain.length];
+    for (int i = 0; i < chain.length; i++) {
+      kinds[i] = EntryKind.mask(chain[i].getKinds());
+    }
+    routes = new int[EntryKind.ALL + 1][];
+    for (int mask = 0; mask < routes.length; mask++) {
+      int count = 0;
+      int[] route = new int[chain.length];
+      for (int i = 0; i < chain.length; i++) {
+        if ((kinds[i] & mask) != 0) {
+          route[count++] = i;
+        }
+      }
+      routes[mask] = Arrays.copyOf(route, count);
+    }
   }
 
   /**
@@ -31,12 +58,78 @@ public class JarProcessorChain implements JarProcessor {
    * @throws IOException
    */
   public boolean process(EntryStruct struct) throws IOException {
+    String name = struct.name;
+    int[] route = routes[EntryKind.mask(name)];
+    for (int r = 0; r < route.length; r++) {
+      int i = route[r];
+      if (!chain[i].process(struct)) {
+        return false;
+      }
+      if (!name.equals(struct.name)) {
+        // The new name may be of other kinds, for the rest of the chain
+        name = struct.name;
+        route = routes[EntryKind.mask(name)];
+        r = position(route, i + 1) - 1;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the index of the first processor from {@code start} on that applies to the entry named
+   * {@code name}, or the length of the chain if there is none.
+   */
+  int next(String name, int start) {
+    int[] route = routes[EntryKind.mask(name)];
+    int r = position(route, start);
+    return (r < route.length) ? route[r] : chain.length;
+  }
+
+  /** Returns the position of the first index in {@code route} that is at least {@code start}. */
+  private static int position(int[] route, int start) {
+    int r = 0;
+    while (r < route.length && route[r] < start) {
+      r++;
+    }
+    return r;
+  }
 
+  /**
+   * Asks every processor of the chain about the name the entry had before the chain, so only
+   * processors that come before any renaming one should reject names.
+   */
+  @Override
+  public boolean accepts(String name) {
     for (JarProcessor aChain : chain) {
-      if (!aChain.process(struct)) {
+      if (!aChain.accepts(name)) {
         return false;
       }
     }
     return true;
   }
+
+  @Override
+  public Set<EntryKind> getKinds() {
+    Set<EntryKind> result = EnumSet.noneOf(EntryKind.class);
+    for (JarProcessor aChain : chain) {
+      result.addAll(aChain.getKinds());
+    }
+    return result;
+  }
+
+  @Override
+  public void excluded(String name) {
+    for (JarProcessor aChain : chain) {
+      aChain.excluded(name);
+    }
+  }
+
+  @Override
+  public Set<String> getExcludes() {
+    Set<String> result = new HashSet<>();
+    for (JarProcessor aChain : chain) {
+      result.addAll(aChain.getExcludes());
+    }
+    return result;
+  }
 }
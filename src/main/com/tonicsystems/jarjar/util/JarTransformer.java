@@ -17,23 +17,49 @@
 package com.tonicsystems.jarjar.util;
 
 import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 
 public abstract class JarTransformer implements JarProcessor {
+  private final boolean copyClassFile;
+
+  protected JarTransformer() {
+    this(false);
+  }
+
+  /**
+   * @param copyClassFile if true, classes are written with the constant pool of the original and
+   *     their frames and max values are kept as they are instead of being recomputed. This is only
+   *     correct for transformations that do not change any code, like renaming. The original
+   *     constant pool entries are kept even when nothing refers to them any more.
+   */
+  protected JarTransformer(boolean copyClassFile) {
+    this.copyClassFile = copyClassFile;
+  }
+
   @Override
   public boolean process(EntryStruct struct) throws IOException {
-    if (struct.isClass()) {
+    if (struct.isClass() && mayTransform(struct.data)) {
       ClassReader reader;
       try {
         reader = new ClassReader(struct.data);
       } catch (RuntimeException e) {
         return true; // TODO?
       }
-      GetNameClassWriter w = new GetNameClassWriter(ClassWriter.COMPUTE_MAXS);
-      ClassVisitor visitor = transform(w);
-      reader.accept(visitor, ClassReader.EXPAND_FRAMES);
+      GetNameClassWriter w;
+      ClassVisitor visitor;
+      if (copyClassFile) {
+        w = new GetNameClassWriter(reader, 0);
+        visitor = transform(w);
+        reader.accept(visitor, 0);
+      } else {
+        w = new GetNameClassWriter(ClassWriter.COMPUTE_MAXS);
+        visitor = transform(w);
+        reader.accept(visitor, ClassReader.EXPAND_FRAMES);
+      }
 
       boolean updateData = true;
       if (visitor instanceof RemappingClassTransformer) {
@@ -47,9 +73,22 @@ public abstract class JarTransformer implements JarProcessor {
     return true;
   }
 
+  @Override
+  public Set<EntryKind> getKinds() {
+    return EnumSet.of(EntryKind.CLASS);
+  }
+
   protected abstract ClassVisitor transform(ClassVisitor v);
 
-  private static String replaceName(String name, String className) {
+  /**
+   * Returns false if {@link #transform} is known to leave the class unchanged, which saves reading
+   * and writing it.
+   */
+  protected boolean mayTransform(byte[] classData) {
+    return true;
+  }
+
+  static String replaceName(String name, String className) {
     String prefix =
         name.startsWith("META-INF/versions/")
             ? name.substring(0, name.indexOf('/', "META-INF/versions/".length()) + 1)
@@ -20,17 +20,48 @@ import org.objectweb.asm.ClassVisitor;
 
 public class JarTransformerChain extends JarTransformer {
   private final RemappingClassTransformer[] chain;
+  private final ThreadLocal<RemappingClassTransformer[]> copies =
+      ThreadLocal.withInitial(this::copyChain);
 
   public JarTransformerChain(RemappingClassTransformer[] chain) {
+    this(chain, false);
+  }
+
+  /** @param copyClassFile see {@link JarTransformer#JarTransformer(boolean)} */
+  public JarTransformerChain(RemappingClassTransformer[] chain, boolean copyClassFile) {
+    super(copyClassFile);
     this.chain = chain.clone();
-    for (int i = chain.length - 1; i > 0; i--) {
-      chain[i - 1].setTarget(chain[i]);
-    }
   }
 
   @Override
   protected ClassVisitor transform(ClassVisitor v) {
-    chain[chain.length - 1].setTarget(v);
-    return chain[0];
+    // Transformers hold per-class state, so every thread gets its own copy of the chain in order
+    // for classes to be transformed concurrently. The copy is pointed at the next class's writer
+    // instead of being allocated again for every class.
+    RemappingClassTransformer[] transformers = copies.get();
+    ClassVisitor target = v;
+    for (int i = transformers.length - 1; i >= 0; i--) {
+      transformers[i].setTarget(target);
+      target = transformers[i];
+    }
+    return target;
+  }
+
+  private RemappingClassTransformer[] copyChain() {
+    RemappingClassTransformer[] result = new RemappingClassTransformer[chain.length];
+    for (int i = 0; i < chain.length; i++) {
+      result[i] = chain[i].copy();
+    }
+    return result;
+  }
+
+  @Override
+  protected boolean mayTransform(byte[] classData) {
+    for (RemappingClassTransformer transformer : chain) {
+      if (transformer.mayRemap(classData)) {
+        return true;
+      }
+    }
+    return false;
   }
 }
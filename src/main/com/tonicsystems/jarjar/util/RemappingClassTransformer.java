@@ -23,8 +23,23 @@ import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.commons.Remapper;
 
 public class RemappingClassTransformer extends ClassRemapper {
+  private final ConstantPoolFilter filter;
+
   public RemappingClassTransformer(Remapper pr) {
+    this(pr, null);
+  }
+
+  /**
+   * @param filter rules out classes the remapper cannot change, or null to transform every class
+   */
+  public RemappingClassTransformer(Remapper pr, ConstantPoolFilter filter) {
     super(new EmptyClassVisitor(), new RemapperTracker(pr));
+    this.filter = filter;
+  }
+
+  /** Returns false if transforming the class is known to leave it unchanged. */
+  public boolean mayRemap(byte[] classData) {
+    return filter == null || filter.mayMatch(classData);
   }
 
   public void setTarget(ClassVisitor target) {
@@ -36,6 +51,17 @@ public class RemappingClassTransformer extends ClassRemapper {
     return ((RemapperTracker) remapper).didRemap;
   }
 
+  /**
+   * Returns a new transformer using the same remapper. Transformers keep per-class state, so a
+   * copy is needed for every thread that transforms classes concurrently. A copy is reused for
+   * the following classes of its thread, so subclasses must reset any state of their own in
+   * {@link #setTarget} or {@link #visit}. Subclasses should override this to return an instance of
+   * their own type.
+   */
+  public RemappingClassTransformer copy() {
+    return new RemappingClassTransformer(((RemapperTracker) remapper).delegate, filter);
+  }
+
   public static class RemapperTracker extends Remapper {
 
     private final Remapper delegate;
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the data of processed entries until they are written, within a memory budget.
+ *
+ * <p>Data that does not fit in the budget is appended to a temporary file, leaving only the name
+ * and metadata of its entry on the heap. The file is created on the first spill and deleted on
+ * {@link #close}.
+ *
+ * <p>Off the heap, data within the budget is copied to large direct buffers instead of staying in
+ * arrays of its own, so that the garbage collector does not have to copy tens of thousands of them
+ * into the old generation and back over them on every full collection. The buffers are not freed
+ * on {@link #close}, since entries still refer to them; their memory is released by the garbage
+ * collector once the entries are unreachable. Once direct memory runs out, as bounded by
+ * {@code -XX:MaxDirectMemorySize}, all further data goes to the file.
+ */
+final class SpillBuffer implements Closeable {
+  // Larger payloads get a direct buffer of their own, so that chunks are not left mostly empty
+  private static final int CHUNK_SIZE = 16 << 20;
+  private static final int MAX_CHUNKED = CHUNK_SIZE / 8;
+
+  private final AtomicLong remaining;
+  private final boolean offHeap;
+  // Set once direct memory runs out, since every failed allocation first waits for a full GC
+  private volatile boolean directExhausted;
+  private ByteBuffer chunk;
+  private FileChannel file;
+  private long fileSize;
+
+  SpillBuffer(long budget) {
+    this(budget, false);
+  }
+
+  /** @param offHeap whether to keep data within the budget outside of the heap */
+  SpillBuffer(long budget, boolean offHeap) {
+    this.remaining = new AtomicLong(budget);
+    this.offHeap = offHeap;
+  }
+
+  /**
+   * Keeps the data that will be written for {@code entry}, either in memory or in the file. This
+   * is safe to call from several threads.
+   */
+  void store(EntryStruct entry) throws IOException {
+    byte[] payload = payload(entry);
+    if (reserve(payload.length)) {
+      if (!offHeap) {
+        return;
+      }
+      ByteBuffer copy = allocate(payload.length);
+      if (copy != null) {
+        copy.put(payload).flip();
+        entry.offHeap = copy;
+        entry.data = null;
+        entry.compressed = null;
+        return;
+      }
+      remaining.addAndGet(payload.length); // the data goes to the file instead
+    }
+    entry.spillOffset = append(payload);
+    entry.spillLength = payload.length;
+    entry.data = null;
+    entry.compressed = null;
+  }
+
+  /** Returns the data kept by {@link #store}. */
+  byte[] load(EntryStruct entry) throws IOException {
+    if (entry.offHeap == null && entry.spillOffset < 0) {
+      return payload(entry);
+    }
+    ByteBuffer buffer = loadBuffer(entry);
+    if (buffer.hasArray()) {
+      return buffer.array();
+    }
+    byte[] result = new byte[buffer.remaining()];
+    buffer.get(result);
+    return result;
+  }
+
+  /**
+   * Returns the data kept by {@link #store} without copying it out of memory, as a buffer that may
+   * be direct. The buffer is only valid until this is closed.
+   */
+  ByteBuffer loadBuffer(EntryStruct entry) throws IOException {
+    if (entry.offHeap != null) {
+      return entry.offHeap.duplicate();
+    }
+    if (entry.spillOffset < 0) {
+      return ByteBuffer.wrap(payload(entry));
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(entry.spillLength);
+    while (buffer.hasRemaining()) {
+      if (file.read(buffer, entry.spillOffset + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static byte[] payload(EntryStruct entry) {
+    return (entry.compressed != null) ? entry.compressed : entry.data;
+  }
+
+  /** Returns {@code length} bytes of direct memory, or null if there is not enough left. */
+  private ByteBuffer allocate(int length) {
+    if (directExhausted) {
+      return null;
+    }
+    try {
+      if (length > MAX_CHUNKED) {
+        return ByteBuffer.allocateDirect(length);
+      }
+      synchronized (this) {
+        if (chunk == null || chunk.remaining() < length) {
+          chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+        ByteBuffer slice = chunk.slice();
+        slice.limit(length);
+        chunk.position(chunk.position() + length);
+        return slice;
+      }
+    } catch (OutOfMemoryError e) {
+      // Out of direct memory, while the heap may still have room
+      directExhausted = true;
+      return null;
+    }
+  }
+
+  private boolean reserve(int length) {
+    long current;
+    do {
+      current = remaining.get();
+      if (current < length) {
+        return false;
+      }
+    } while (!remaining.compareAndSet(current, current - length));
+    return true;
+  }
+
+  private long append(byte[] payload) throws IOException {
+    long offset;
+    synchronized (this) {
+      if (file == null) {
+        Path path = Files.createTempFile("jarjar", ".spill");
+        file =
+            FileChannel.open(
+                path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+      }
+      offset = fileSize;
+      fileSize += payload.length;
+    }
+
+    // Positional writes to separate ranges need no locking
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    while (buffer.hasRemaining()) {
+      file.write(buffer, offset + buffer.position());
+    }
+    return offset;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    chunk = null;
+    if (file != null) {
+      file.close();
+    }
+  }
+}
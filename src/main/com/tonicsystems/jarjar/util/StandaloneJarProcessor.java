@@ -16,35 +16,306 @@
 
 package com.tonicsystems.jarjar.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /** Util for transforming a JAR. */
 public final class StandaloneJarProcessor {
+
+  /** How entries are compressed in the output jar. */
+  public enum Compression {
+    /** Entries are stored without compression. */
+    STORED(ZipReader.STORED, Deflater.NO_COMPRESSION),
+    /** Entries are deflated with the fastest level. */
+    FAST(ZipReader.DEFLATED, Deflater.BEST_SPEED),
+    /** Entries are deflated with the default level, as {@link java.util.zip.ZipOutputStream}. */
+    DEFAULT(ZipReader.DEFLATED, Deflater.DEFAULT_COMPRESSION),
+    /** Entries are deflated with the level that gives the smallest output. */
+    MAX(ZipReader.DEFLATED, Deflater.BEST_COMPRESSION);
+
+    final int method;
+    final int level;
+
+    Compression(int method, int level) {
+      this.method = method;
+      this.level = level;
+    }
+
+    /** Parses a compression name as given on the command line, ignoring case. */
+    public static Compression parse(String name) {
+      return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+  }
+
+  /** Settings for a single {@link StandaloneJarProcessor#run}. */
+  public static final class Options {
+    private int threads = 1;
+    private long memoryBudget = Long.MAX_VALUE;
+    private Compression compression = Compression.DEFAULT;
+    private boolean incremental;
+    private boolean offHeap;
+    private int writeAhead;
+
+    /**
+     * Sets the number of threads used to read, process and compress entries.
+     *
+     * <p>With more than one thread the {@link JarProcessor} must be safe for concurrent use. The
+     * output does not depend on the number of threads.
+     */
+    public Options setThreads(int threads) {
+      if (threads < 1) {
+        throw new IllegalArgumentException("threads must be positive: " + threads);
+      }
+      this.threads = threads;
+      return this;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    /**
+     * Sets how many bytes of entry data may be held in memory between processing and writing.
+     *
+     * <p>Data beyond the budget is moved to a temporary file until it is written, so that only
+     * entry names and metadata stay on the heap. Entries being processed are not counted. By
+     * default all the data is held in memory.
+     */
+    public Options setMemoryBudget(long memoryBudget) {
+      if (memoryBudget < 0) {
+        throw new IllegalArgumentException("memoryBudget must not be negative: " + memoryBudget);
+      }
+      this.memoryBudget = memoryBudget;
+      return this;
+    }
+
+    public long getMemoryBudget() {
+      return memoryBudget;
+    }
+
+    /**
+     * Sets whether entry data held in memory between processing and writing is kept outside of the
+     * Java heap, in direct buffers that the garbage collector frees once the output is written.
+     *
+     * <p>This keeps large jars from filling the old generation with entry data and making full
+     * collections long. The memory budget still applies, and so does the limit on direct memory
+     * ({@code -XX:MaxDirectMemorySize}), beyond which data goes to the temporary file.
+     */
+    public Options setOffHeap(boolean offHeap) {
+      this.offHeap = offHeap;
+      return this;
+    }
+
+    public boolean isOffHeap() {
+      return offHeap;
+    }
+
+    /**
+     * Sets how many entries may be compressed ahead of the one being written, when there is more
+     * than one thread. Each of them holds its data and its compressed form in memory on top of the
+     * memory budget, while too few leave threads idle when entries vary in size. By default there
+     * are four per thread.
+     *
+     * <p>This is also how many entries may be in flight at once in an {@link AsyncJarProcessor}.
+     *
+     * <p>Writing only starts once every entry is processed, since entries are written in the
+     * order of their processed names and processors may exclude entries after seeing them all.
+     * Until then processed entries are held within the memory budget.
+     */
+    public Options setWriteAhead(int writeAhead) {
+      if (writeAhead < 1) {
+        throw new IllegalArgumentException("writeAhead must be positive: " + writeAhead);
+      }
+      this.writeAhead = writeAhead;
+      return this;
+    }
+
+    public int getWriteAhead() {
+      return (writeAhead > 0) ? writeAhead : threads * 4;
+    }
+
+    /**
+     * Sets how entries are compressed in the output.
+     *
+     * <p>Entries the processors did not change are copied as they are, whatever the deflate level,
+     * except that {@link Compression#STORED} stores deflated ones.
+     */
+    public Options setCompression(Compression compression) {
+      if (compression == null) {
+        throw new NullPointerException("compression");
+      }
+      this.compression = compression;
+      return this;
+    }
+
+    public Compression getCompression() {
+      return compression;
+    }
+
+    /**
+     * Sets whether to reuse the output jar of the previous run, for entries that did not change
+     * since.
+     *
+     * <p>Each run then writes an index of what became of every input entry next to the output jar,
+     * and reads the one left by the previous run. Entries with the same name, checksum and size as
+     * in that index are copied from the previous output instead of being processed again, unless
+     * the processors have a different {@link JarProcessor#getFingerprint fingerprint}, the
+     * compression changed, or the processors exclude other entries than last time, in which case
+     * every entry is processed. The output is the same as without this.
+     *
+     * <p>Runs from or into a directory are never incremental.
+     */
+    public Options setIncremental(boolean incremental) {
+      this.incremental = incremental;
+      return this;
+    }
+
+    public boolean isIncremental() {
+      return incremental;
+    }
+  }
+
   public static void run(File from, File to, JarProcessor proc) throws IOException {
-    ArrayList<EntryStruct> entries = new ArrayList<>();
+    run(from, to, proc, new Options());
+  }
+
+  public static void run(File from, File to, JarProcessor proc, Options options)
+      throws IOException {
+    run(Collections.singletonList(from), to, proc, options);
+  }
+
+  /**
+   * Processes several jars into a single one, as if all their entries were in one jar, in order.
+   *
+   * <p>Entries that end up with the same name are merged. Directories are written once. Files with
+   * the same content are written once, from the first jar that has them, and so is the manifest,
+   * whatever the manifests of later jars contain. Service provider files in {@code
+   * META-INF/services/} are concatenated. Other files with different content are an error, as are
+   * different manifests within the same jar.
+   *
+   * <p>Any of {@code from} may also be a directory, whose files are read as entries named by their
+   * relative path. If {@code to} is an existing directory, the output entries are written as files
+   * under it instead of into a jar, replacing files of the same name and deleting those the
+   * processors exclude, so that neither side goes through compression.
+   */
+  public static void run(List<File> from, File to, JarProcessor proc, Options options)
+      throws IOException {
+    if (from.isEmpty()) {
+      throw new IllegalArgumentException("At least one input jar is required");
+    }
+    boolean exploded = to.isDirectory();
+    for (File file : from) {
+      exploded |= file.isDirectory();
+    }
+    // Files in a directory have no checksum to match the index with
+    byte[] fingerprint = (options.incremental && !exploded) ? proc.getFingerprint() : null;
+    IncrementalIndex previous = null;
+    if (fingerprint != null) {
+      File indexFile = IncrementalIndex.fileFor(to);
+      previous = IncrementalIndex.read(indexFile);
+      if (previous != null && !previous.matches(fingerprint, options.compression.name())) {
+        previous = null;
+      }
+      // Once the output is rewritten, the index no longer describes it
+      Files.deleteIfExists(indexFile.toPath());
+    }
+
+    try (SpillBuffer buffer = new SpillBuffer(options.memoryBudget, options.offHeap)) {
+      if (run(from, to, proc, options, buffer, previous, fingerprint)) {
+        return;
+      }
+    }
+    // The processors exclude other entries than in the previous run, whose output then lacks
+    // entries that are now needed
+    try (SpillBuffer buffer = new SpillBuffer(options.memoryBudget, options.offHeap)) {
+      run(from, to, proc, options, buffer, null, fingerprint);
+    }
+  }
+
+  /**
+   * Processes {@code from} into {@code to}, reusing the output of the {@code previous} run if it is
+   * not null, and writes an index for the next run if {@code fingerprint} is not null.
+   *
+   * @return false if nothing was written, because the output of the previous run cannot be reused
+   */
+  private static boolean run(
+      List<File> from,
+      File to,
+      JarProcessor proc,
+      Options options,
+      SpillBuffer buffer,
+      IncrementalIndex previous,
+      byte[] fingerprint)
+      throws IOException {
+    int threads = options.threads;
+    int writeAhead = options.getWriteAhead();
+    Compression compression = options.compression;
+    boolean toDirectory = to.isDirectory();
+    // Files are written uncompressed, so only stored entries are worth keeping as they are
+    int outputMethod = toDirectory ? ZipReader.STORED : compression.method;
+    List<ZipReader.Entry> inputEntries = new ArrayList<>();
+    List<EntryStruct> results = new ArrayList<>();
+    Set<String> excludes;
 
     // Read and transform all the input entries
-    try (ZipFile inZip = new ZipFile(from)) {
-      for (Enumeration<? extends ZipEntry> e = inZip.entries(); e.hasMoreElements(); ) {
-        ZipEntry inEntry = e.nextElement();
-        EntryStruct outEntry = new EntryStruct();
-        outEntry.name = inEntry.getName();
-        outEntry.time = inEntry.getTime();
-        outEntry.data = inZip.getInputStream(inEntry).readAllBytes();
-
-        if (!proc.process(outEntry)) {
-          continue; // Skip any inputs dropped by the transformation rules
+    try (PreviousOutput reuse = PreviousOutput.open(to, previous)) {
+      for (int i = 0; i < from.size(); i++) {
+        File file = from.get(i);
+        // The output replaces the input when they are the same file, which must not be mapped then
+        try (EntryReader input =
+            file.isDirectory()
+                ? new DirectoryReader(file)
+                : new ZipReader(file, !isSameFile(file, to))) {
+          inputEntries.addAll(input.entries());
+          EntryStruct[] processed =
+              processEntries(input, proc, threads, writeAhead, outputMethod, buffer, reuse);
+          for (EntryStruct entry : processed) {
+            if (entry != null) {
+              entry.input = i;
+            }
+          }
+          results.addAll(Arrays.asList(processed));
         }
+      }
 
-        entries.add(outEntry);
+      // Drop what the processors only knew to drop once they had seen every entry
+      excludes = proc.getExcludes();
+      if (reuse != null && !excludes.equals(previous.getExcludes())) {
+        return false;
+      }
+    }
+    ArrayList<EntryStruct> entries = new ArrayList<>(results.size());
+    for (EntryStruct entry : results) {
+      if (entry == null) {
+        continue;
+      }
+      if (excludes.contains(entry.name)) {
+        proc.excluded(entry.name);
+      } else {
+        entries.add(entry);
       }
     }
 
@@ -52,45 +323,558 @@ public final class StandaloneJarProcessor {
     // For determinism in the case of duplicate entry names, this must be a stable sort.
     Collections.sort(entries, Comparator.comparing((x) -> x.name));
 
-    // Drop any empty directories and handle duplicate names
+    // Merge entries with the same name, which are next to each other
+    int count = 0;
+    for (EntryStruct entry : entries) {
+      EntryStruct last = (count > 0) ? entries.get(count - 1) : null;
+      if (last == null || !last.name.equals(entry.name)) {
+        entries.set(count++, entry);
+      } else if (entry.isDir()) {
+        entries.set(count - 1, entry); // TODO(nickreid): Report duplicate dirs
+      } else {
+        entries.set(count - 1, merge(last, entry, buffer));
+      }
+    }
+    entries.subList(count, entries.size()).clear();
+
+    // Drop any empty directories
     EntryStruct prevFile = null;
-    EntryStruct prevEntry = null;
     for (int i = entries.size() - 1; i >= 0; i--) {
       EntryStruct entry = entries.get(i);
-      boolean dropEntry = false;
+      if (!entry.isDir()) {
+        prevFile = entry;
+      } else if (prevFile == null || !prevFile.name.startsWith(entry.name)) {
+        // This dir is not a parent of the previous file
+        entries.set(i, null); // Set to null, rather than shift the entire list
+      }
+    }
 
-      if (prevEntry != null && prevEntry.name.equals(entry.name)) {
-        if (entry.isDir()) {
-          dropEntry = true; // TODO(nickreid): Report duplicate dirs
-        } else {
-          throw new IllegalArgumentException("Duplicate jar entries: " + entry.name);
+    // Write all surviving entries, copying the compressed data of unchanged ones
+    entries.removeIf((x) -> x == null);
+    if (toDirectory) {
+      writeDirectory(to, entries, excludes, threads, buffer);
+      return true;
+    }
+    try (ZipWriter outZip = new ZipWriter(to, compression.method, compression.level)) {
+      if (threads == 1) {
+        for (EntryStruct entry : entries) {
+          ByteBuffer payload = buffer.loadBuffer(entry);
+          if (entry.source != null) {
+            writeRaw(outZip, entry, payload);
+          } else {
+            outZip.write(entry.name, entry.time, outZip.compress(payload));
+          }
         }
-      } else if (entry.isDir()) {
-        // Is this dir a parent of the previous file?
-        dropEntry = (prevFile == null || !prevFile.name.startsWith(entry.name));
       } else {
-        prevFile = entry;
+        writeEntries(outZip, entries, threads, writeAhead, buffer);
       }
+      outZip.finish();
+    }
 
-      if (dropEntry) {
-        entries.set(i, null); // Set to null, rather than shift the entire list
-      } else {
-        prevEntry = entry;
+    if (fingerprint != null) {
+      writeIndex(to, inputEntries, results, fingerprint, compression, excludes);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the entry to write for two files with the same name, {@code first} coming from an
+   * earlier input entry than {@code second}.
+   */
+  private static EntryStruct merge(EntryStruct first, EntryStruct second, SpillBuffer buffer)
+      throws IOException {
+    if (first.name.equalsIgnoreCase(EntryKind.MANIFEST_NAME) && first.input != second.input) {
+      return first; // Each jar has its own, and only one can describe the output
+    }
+    boolean service = first.name.startsWith(EntryKind.SERVICES_PREFIX);
+    // Entries copied as they were read can be told apart by their checksums, without inflating
+    if (!service
+        && first.source != null
+        && second.source != null
+        && (first.source.crc != second.source.crc || first.source.size != second.source.size)) {
+      throw new IllegalArgumentException("Duplicate jar entries: " + first.name);
+    }
+    byte[] firstData = contents(first, buffer);
+    byte[] secondData = contents(second, buffer);
+    if (Arrays.equals(firstData, secondData)) {
+      return first;
+    }
+    if (!service) {
+      throw new IllegalArgumentException("Duplicate jar entries: " + first.name);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(firstData);
+    if (firstData.length > 0 && firstData[firstData.length - 1] != '\n') {
+      out.write('\n');
+    }
+    out.write(secondData);
+    EntryStruct merged = new EntryStruct();
+    merged.name = first.name;
+    merged.time = first.time;
+    merged.data = out.toByteArray();
+    return merged;
+  }
+
+  /** Returns the uncompressed data of a processed entry. */
+  private static byte[] contents(EntryStruct entry, SpillBuffer buffer) throws IOException {
+    byte[] payload = buffer.load(entry);
+    return (entry.source != null)
+        ? ZipReader.decompress(entry.source, ByteBuffer.wrap(payload))
+        : payload;
+  }
+
+  /**
+   * Records what became of each input entry, with the checksum and size it was written with.
+   * Entries merged with others are recorded as not written, since their output is not theirs alone.
+   */
+  private static void writeIndex(
+      File to,
+      List<ZipReader.Entry> inputEntries,
+      List<EntryStruct> results,
+      byte[] fingerprint,
+      Compression compression,
+      Set<String> excludes)
+      throws IOException {
+    Map<String, ZipReader.Entry> written = new HashMap<>();
+    // Not mapped, so that the next run can replace the file
+    try (ZipReader output = new ZipReader(to, false)) {
+      for (ZipReader.Entry entry : output.entries()) {
+        written.put(entry.name, entry);
+      }
+    }
+    Map<String, Integer> sources = new HashMap<>();
+    for (EntryStruct result : results) {
+      if (result != null) {
+        sources.merge(result.name, 1, Integer::sum);
       }
     }
+    List<IncrementalIndex.Record> records = new ArrayList<>(results.size());
+    for (int i = 0; i < results.size(); i++) {
+      ZipReader.Entry source = inputEntries.get(i);
+      String outputName = (results.get(i) != null) ? results.get(i).name : null;
+      ZipReader.Entry output =
+          (outputName != null && sources.get(outputName) == 1) ? written.get(outputName) : null;
+      records.add(
+          new IncrementalIndex.Record(
+              source.name,
+              source.crc,
+              source.size,
+              outputName,
+              (output != null) ? output.crc : -1,
+              (output != null) ? output.size : -1));
+    }
+    new IncrementalIndex(fingerprint, compression.name(), excludes, records)
+        .write(IncrementalIndex.fileFor(to));
+  }
+
+  /**
+   * Writes each entry as a file under {@code dir}, on {@code threads} threads, and deletes the
+   * files of excluded entries left there by earlier runs. Directories get their modification time
+   * once their files are written.
+   */
+  private static void writeDirectory(
+      File dir, List<EntryStruct> entries, Set<String> excludes, int threads, SpillBuffer buffer)
+      throws IOException {
+    Path root = dir.toPath().toAbsolutePath().normalize();
+    for (String exclude : excludes) {
+      Files.deleteIfExists(resolve(root, exclude));
+    }
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      List<Future<?>> pending = new ArrayList<>();
+      for (EntryStruct entry : entries) {
+        if (!entry.isDir()) {
+          pending.add(
+              pool.submit(
+                  () -> {
+                    try {
+                      writeFile(root, entry, buffer);
+                    } catch (IOException e) {
+                      throw new RuntimeIOException(e);
+                    }
+                  }));
+        }
+      }
+      for (Future<?> future : pending) {
+        getUninterruptibly(future);
+      }
+    } catch (RuntimeIOException e) {
+      throw (IOException) e.getCause();
+    } finally {
+      pool.shutdownNow();
+    }
+    for (EntryStruct entry : entries) {
+      if (entry.isDir()) {
+        Path path = resolve(root, entry.name);
+        Files.createDirectories(path);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(entry.time));
+      }
+    }
+  }
+
+  private static void writeFile(Path root, EntryStruct entry, SpillBuffer buffer)
+      throws IOException {
+    Path path = resolve(root, entry.name);
+    Files.createDirectories(path.getParent());
+    Files.write(path, contents(entry, buffer));
+    Files.setLastModifiedTime(path, FileTime.fromMillis(entry.time));
+  }
+
+  /** Returns the file for an entry name, which must not lead outside of {@code root}. */
+  private static Path resolve(Path root, String name) throws IOException {
+    Path path = root.resolve(name).normalize();
+    if (!path.startsWith(root) || path.equals(root)) {
+      throw new IOException("Entry is outside of the output directory: " + name);
+    }
+    return path;
+  }
 
-    // Write all surviving entries
-    try (ZipOutputStream outZip = IoUtil.bufferedZipOutput(to)) {
+  private static void writeRaw(ZipWriter outZip, EntryStruct entry, ByteBuffer payload)
+      throws IOException {
+    ZipReader.Entry source = entry.source;
+    outZip.writeRaw(entry.name, entry.time, source.method, source.crc, source.size, payload);
+  }
+
+  /**
+   * Compresses changed entries on {@code threads} threads while this thread writes them in order.
+   * At most {@code writeAhead} entries are loaded and compressed ahead of the writer, so that the
+   * memory budget still roughly holds.
+   */
+  private static void writeEntries(
+      ZipWriter outZip, List<EntryStruct> entries, int threads, int writeAhead, SpillBuffer buffer)
+      throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      ArrayDeque<Future<ZipWriter.Compressed>> pending = new ArrayDeque<>();
+      int next = 0;
       for (EntryStruct entry : entries) {
-        if (entry == null) {
-          continue;
+        while (next < entries.size() && pending.size() < writeAhead) {
+          EntryStruct ahead = entries.get(next++);
+          pending.add(
+              (ahead.source != null)
+                  ? CompletableFuture.completedFuture(null)
+                  : pool.submit(() -> outZip.compress(buffer.loadBuffer(ahead))));
+        }
+
+        ZipWriter.Compressed compressed = getUninterruptibly(pending.remove());
+        if (entry.source != null) {
+          writeRaw(outZip, entry, buffer.loadBuffer(entry));
+        } else {
+          outZip.write(entry.name, entry.time, compressed);
         }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static <T> T getUninterruptibly(Future<T> future) throws IOException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Reads and processes every entry of {@code input}, returning the processed entries at the index
+   * of their input entry, or null for those that were dropped, regardless of how many threads did
+   * the work. Unchanged entries keep their compressed data unless they would have to be inflated
+   * for {@code outputMethod}.
+   *
+   * @param window how many entries an {@link AsyncJarProcessor} may have in flight
+   * @param reuse the output of the previous run, or null to process every entry
+   */
+  private static EntryStruct[] processEntries(
+      EntryReader input,
+      JarProcessor proc,
+      int threads,
+      int window,
+      int outputMethod,
+      SpillBuffer buffer,
+      PreviousOutput reuse)
+      throws IOException {
+    if (proc instanceof AsyncJarProcessor) {
+      return processEntriesAsync(input, proc, window, outputMethod, buffer, reuse);
+    }
+    EntryStruct[] results = new EntryStruct[input.entries().size()];
+
+    if (threads == 1) {
+      for (int i = 0; i < results.length; i++) {
+        results[i] = processEntry(input, i, proc, outputMethod, buffer, reuse).join();
+      }
+    } else {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        pool.invoke(
+            new ProcessTask(input, proc, outputMethod, buffer, reuse, results, 0, results.length));
+      } catch (RuntimeIOException e) {
+        throw (IOException) e.getCause();
+      } finally {
+        pool.shutdown();
+      }
+    }
+    return results;
+  }
 
-        ZipEntry outEntry = new ZipEntry(entry.name);
-        outEntry.setTime(entry.time);
-        outEntry.setCompressedSize(-1);
-        outZip.putNextEntry(outEntry);
-        outZip.write(entry.data);
+  /**
+   * Like {@link #processEntries}, for an {@link AsyncJarProcessor}. Entries are read in order on
+   * this thread and handed to the processor, which completes them in its own time, with at most
+   * {@code window} of them in flight so that reading cannot run far ahead of slow processors.
+   */
+  private static EntryStruct[] processEntriesAsync(
+      EntryReader input,
+      JarProcessor proc,
+      int window,
+      int outputMethod,
+      SpillBuffer buffer,
+      PreviousOutput reuse)
+      throws IOException {
+    EntryStruct[] results = new EntryStruct[input.entries().size()];
+    ArrayDeque<CompletableFuture<EntryStruct>> pending = new ArrayDeque<>();
+    int done = 0;
+    try {
+      for (int i = 0; i < results.length; i++) {
+        if (pending.size() == window) {
+          results[done++] = getUninterruptibly(pending.remove());
+        }
+        pending.add(processEntry(input, i, proc, outputMethod, buffer, reuse));
+      }
+      while (!pending.isEmpty()) {
+        results[done++] = getUninterruptibly(pending.remove());
+      }
+    } catch (RuntimeIOException e) {
+      throw (IOException) e.getCause();
+    } finally {
+      for (CompletableFuture<EntryStruct> future : pending) {
+        future.cancel(false); // so that entries still in flight are not stored
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Returns the processed entry, or null if it was dropped by the transformation rules. The result
+   * is already complete unless {@code proc} is an {@link AsyncJarProcessor}.
+   */
+  private static CompletableFuture<EntryStruct> processEntry(
+      EntryReader input,
+      int index,
+      JarProcessor proc,
+      int outputMethod,
+      SpillBuffer buffer,
+      PreviousOutput reuse)
+      throws IOException {
+    ZipReader.Entry source = input.entries().get(index);
+    if (!proc.accepts(source.name)) {
+      return CompletableFuture.completedFuture(null); // without reading it
+    }
+    EntryStruct outEntry = new EntryStruct();
+    outEntry.name = source.name;
+    outEntry.time = source.time;
+
+    // A reused entry is only inflated if a processor still has to see its data
+    IncrementalIndex.Record record = (reuse != null) ? reuse.find(source) : null;
+    if (record != null) {
+      if (proc.readsUnchanged()) {
+        outEntry.data = input.read(source);
+      }
+      proc.processUnchanged(outEntry, record.outputName);
+      if (record.outputName == null) {
+        return CompletableFuture.completedFuture(null);
+      }
+      outEntry.name = record.outputName;
+      outEntry.data = null;
+      if (record.isWritten()) {
+        outEntry.source = reuse.get(record.outputName);
+        outEntry.compressed = reuse.output.readRaw(outEntry.source);
+      } else {
+        outEntry.data = new byte[0]; // excluded again, unless the run starts over
+      }
+      buffer.store(outEntry);
+      return CompletableFuture.completedFuture(outEntry);
+    }
+
+    byte[] data = input.read(source);
+    outEntry.data = data;
+    if (!(proc instanceof AsyncJarProcessor)) {
+      boolean keep = proc.process(outEntry);
+      return CompletableFuture.completedFuture(
+          keep ? store(input, source, data, outEntry, outputMethod, buffer) : null);
+    }
+    return ((AsyncJarProcessor) proc)
+        .processAsync(outEntry)
+        .thenApply(
+            (processed) -> {
+              if (processed == null) {
+                return null;
+              }
+              try {
+                return store(input, source, data, processed, outputMethod, buffer);
+              } catch (IOException e) {
+                throw new RuntimeIOException(e);
+              }
+            });
+  }
+
+  /**
+   * Keeps a processed entry until it is written, as the compressed data of its input entry if the
+   * processors left its data as it was read.
+   */
+  private static EntryStruct store(
+      EntryReader input,
+      ZipReader.Entry source,
+      byte[] data,
+      EntryStruct outEntry,
+      int outputMethod,
+      SpillBuffer buffer)
+      throws IOException {
+    // Processors may also have modified the original array, which the checksum catches
+    if ((source.method == ZipReader.STORED || outputMethod == ZipReader.DEFLATED)
+        && Arrays.equals(outEntry.data, data)
+        && outEntry.data.length == source.size
+        && crc32(outEntry.data) == source.crc) {
+      outEntry.source = source;
+      outEntry.compressed = input.readRaw(source);
+      outEntry.data = null; // only the compressed form is written
+    }
+    buffer.store(outEntry);
+    return outEntry;
+  }
+
+  private static boolean isSameFile(File a, File b) throws IOException {
+    return b.exists() && Files.isSameFile(a.toPath(), b.toPath());
+  }
+
+  private static long crc32(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+  /** The output of the previous run, and its index. */
+  private static final class PreviousOutput implements Closeable {
+    final ZipReader output;
+    private final IncrementalIndex index;
+    private final Map<String, ZipReader.Entry> byName = new HashMap<>();
+
+    private PreviousOutput(ZipReader output, IncrementalIndex index) {
+      this.output = output;
+      this.index = index;
+      for (ZipReader.Entry entry : output.entries()) {
+        byName.put(entry.name, entry);
+      }
+    }
+
+    /** Returns the output of the previous run, or null if there is none to reuse. */
+    static PreviousOutput open(File file, IncrementalIndex index) {
+      if (index == null) {
+        return null;
+      }
+      try {
+        // Not mapped, since this run replaces the file
+        return new PreviousOutput(new ZipReader(file, false), index);
+      } catch (IOException e) {
+        return null; // deleted, or not written to the end
+      }
+    }
+
+    /**
+     * Returns what the previous run made of {@code entry}, or null if it has to be processed:
+     * because it changed, or the previous output does not hold what the index says it does, or it
+     * is a directory, which depends on the other entries and costs nothing to process.
+     */
+    IncrementalIndex.Record find(ZipReader.Entry entry) {
+      IncrementalIndex.Record record = entry.isDirectory() ? null : index.find(entry);
+      if (record == null || record.outputName == null) {
+        return record;
+      }
+      if (record.isWritten()) {
+        ZipReader.Entry output = byName.get(record.outputName);
+        if (output == null || output.crc != record.outputCrc || output.size != record.outputSize) {
+          return null;
+        }
+      } else if (!index.getExcludes().contains(record.outputName)) {
+        return null;
+      }
+      return record;
+    }
+
+    ZipReader.Entry get(String name) {
+      return byName.get(name);
+    }
+
+    @Override
+    public void close() throws IOException {
+      output.close();
+    }
+  }
+
+  /** Processes a range of entries, splitting it in halves until each task has a single entry. */
+  private static final class ProcessTask extends RecursiveAction {
+    private static final long serialVersionUID = 0L;
+
+    private final EntryReader input;
+    private final JarProcessor proc;
+    private final int outputMethod;
+    private final SpillBuffer buffer;
+    private final PreviousOutput reuse;
+    private final EntryStruct[] results;
+    private final int start;
+    private final int end;
+
+    ProcessTask(
+        EntryReader input,
+        JarProcessor proc,
+        int outputMethod,
+        SpillBuffer buffer,
+        PreviousOutput reuse,
+        EntryStruct[] results,
+        int start,
+        int end) {
+      this.input = input;
+      this.proc = proc;
+      this.outputMethod = outputMethod;
+      this.buffer = buffer;
+      this.reuse = reuse;
+      this.results = results;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start > 1) {
+        int mid = (start + end) >>> 1;
+        invokeAll(
+            new ProcessTask(input, proc, outputMethod, buffer, reuse, results, start, mid),
+            new ProcessTask(input, proc, outputMethod, buffer, reuse, results, mid, end));
+      } else if (end > start) {
+        try {
+          results[start] = processEntry(input, start, proc, outputMethod, buffer, reuse).join();
+        } catch (IOException e) {
+          throw new RuntimeIOException(e);
+        }
       }
     }
   }
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a ZIP file through a memory mapping, parsing its central directory directly.
+ *
+ * <p>The data of an entry is a slice of the mapping, which is inflated without going through any
+ * stream buffers, or copied to the output as it is when it was not changed, see {@link ZipWriter}.
+ * Entries are listed in central directory order, which is also the order of {@link
+ * java.util.zip.ZipFile#entries}.
+ *
+ * <p>Files too large to be mapped at once are mapped one entry at a time. Files that are about to
+ * be replaced are read without any mapping, since a mapping lasts until the garbage collector
+ * releases it, and a mapped file cannot be replaced on Windows.
+ */
+final class ZipReader implements EntryReader {
+  static final int STORED = 0;
+  static final int DEFLATED = 8;
+
+  private static final int LOC_SIG = 0x04034b50;
+  private static final int CEN_SIG = 0x02014b50;
+  private static final int END_SIG = 0x06054b50;
+  private static final int ZIP64_END_SIG = 0x06064b50;
+  private static final int ZIP64_LOC_SIG = 0x07064b50;
+
+  private static final int LOC_HEADER = 30;
+  private static final int CEN_HEADER = 46;
+  private static final int END_HEADER = 22;
+  private static final int ZIP64_END_HEADER = 56;
+  private static final int ZIP64_LOC_HEADER = 20;
+  private static final int ZIP64_EXTRA = 0x0001;
+  private static final int NTFS_EXTRA = 0x000a;
+  private static final int EXTENDED_TIME_EXTRA = 0x5455;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+  private static final long WINDOWS_EPOCH_IN_MICROSECONDS = -11644473600000000L;
+
+  /** The location and compressed form of a single entry. */
+  static final class Entry {
+    final String name;
+    final int method;
+    final long crc;
+    final long compressedSize;
+    final long size;
+    final long offset;
+
+    /** The modification time, as {@link java.util.zip.ZipEntry#getTime} would return it. */
+    final long time;
+
+    Entry(
+        String name, int method, long crc, long compressedSize, long size, long offset, long time) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.offset = offset;
+      this.time = time;
+    }
+
+    boolean isDirectory() {
+      return name.endsWith("/");
+    }
+  }
+
+  private final File file;
+  private final FileChannel channel;
+  private final long fileSize;
+  private final boolean map;
+  private final MappedByteBuffer mapping;
+  private final List<Entry> entries;
+
+  ZipReader(File file) throws IOException {
+    this(file, true);
+  }
+
+  /**
+   * @param map false to read {@code file} with positional reads instead of a mapping, so that it
+   *     can be replaced as soon as this is closed
+   */
+  ZipReader(File file, boolean map) throws IOException {
+    this.file = file;
+    this.map = map;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      this.fileSize = channel.size();
+      this.mapping =
+          (map && fileSize <= Integer.MAX_VALUE)
+              ? channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize)
+              : null;
+      this.entries = Collections.unmodifiableList(readCentralDirectory());
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  @Override
+  public List<Entry> entries() {
+    return entries;
+  }
+
+  /**
+   * Returns the compressed data of {@code entry} as a read-only slice of the mapping, or as a copy
+   * if the file is not mapped. This is safe to call from several threads.
+   */
+  ByteBuffer slice(Entry entry) throws IOException {
+    ByteBuffer header = region(entry.offset, LOC_HEADER);
+    if (header.getInt(0) != LOC_SIG) {
+      throw new ZipException("Bad local header for " + entry.name);
+    }
+    long start = entry.offset + LOC_HEADER + u16(header, 26) + u16(header, 28);
+    if (entry.compressedSize > Integer.MAX_VALUE - 8 || start + entry.compressedSize > fileSize) {
+      throw new ZipException("Bad entry size for " + entry.name);
+    }
+    return region(start, (int) entry.compressedSize);
+  }
+
+  /** Returns a copy of the compressed data of {@code entry}. */
+  @Override
+  public byte[] readRaw(Entry entry) throws IOException {
+    ByteBuffer data = slice(entry);
+    byte[] result = new byte[data.remaining()];
+    data.get(result);
+    return result;
+  }
+
+  /** Returns the uncompressed data of {@code entry}. This is safe to call from several threads. */
+  @Override
+  public byte[] read(Entry entry) throws IOException {
+    return decompress(entry, slice(entry));
+  }
+
+  /** Returns the uncompressed data of {@code entry}, given its compressed {@code data}. */
+  static byte[] decompress(Entry entry, ByteBuffer data) throws IOException {
+    if (entry.size > Integer.MAX_VALUE - 8) {
+      throw new ZipException("Entry too large: " + entry.name);
+    }
+    byte[] result = new byte[(int) entry.size];
+    if (entry.method == STORED) {
+      if (data.remaining() != result.length) {
+        throw new ZipException("Bad entry size for " + entry.name);
+      }
+      data.get(result);
+      return result;
+    }
+    checkMethod(entry);
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(data);
+      int length = 0;
+      while (length < result.length) {
+        int n = inflater.inflate(result, length, result.length - length);
+        if (n == 0) {
+          break;
+        }
+        length += n;
+      }
+      if (length != result.length) {
+        throw new ZipException("Bad entry size for " + entry.name);
+      }
+    } catch (DataFormatException e) {
+      throw new ZipException(e.getMessage() + " in " + entry.name);
+    } finally {
+      inflater.end();
+    }
+    return result;
+  }
+
+  /**
+   * Returns a stream of the uncompressed data of {@code entry}, inflated from the mapping as it is
+   * read, for callers that only need the start of an entry.
+   */
+  InputStream openStream(Entry entry) throws IOException {
+    ByteBuffer data = slice(entry);
+    if (entry.method == STORED) {
+      return new BufferInputStream(data);
+    }
+    checkMethod(entry);
+    return new InflatingInputStream(entry.name, data);
+  }
+
+  private static void checkMethod(Entry entry) throws ZipException {
+    if (entry.method != DEFLATED) {
+      throw new ZipException(
+          "Unsupported compression method " + entry.method + " for " + entry.name);
+    }
+  }
+
+  private List<Entry> readCentralDirectory() throws IOException {
+    int tailSize = (int) Math.min(fileSize, END_HEADER + 0xFFFF);
+    ByteBuffer tail = region(fileSize - tailSize, tailSize);
+
+    // The end record is followed by a comment of up to 64k, so search backwards for it
+    int end = tailSize - END_HEADER;
+    while (end >= 0
+        && (tail.getInt(end) != END_SIG || end + END_HEADER + u16(tail, end + 20) != tailSize)) {
+      end--;
+    }
+    if (end < 0) {
+      throw new ZipException("No end of central directory record");
+    }
+    long endPos = fileSize - tailSize + end;
+    long count = u16(tail, end + 10);
+    long cenSize = u32(tail, end + 12);
+    long cenOffset = u32(tail, end + 16);
+
+    if (count == 0xFFFF || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC) {
+      long locatorPos = endPos - ZIP64_LOC_HEADER;
+      if (locatorPos >= 0) {
+        ByteBuffer locator = region(locatorPos, ZIP64_LOC_HEADER);
+        if (locator.getInt(0) == ZIP64_LOC_SIG) {
+          long zip64EndPos = locator.getLong(8);
+          ByteBuffer zip64End = region(zip64EndPos, ZIP64_END_HEADER);
+          if (zip64End.getInt(0) != ZIP64_END_SIG) {
+            throw new ZipException("Bad zip64 end of central directory record");
+          }
+          count = zip64End.getLong(32);
+          cenSize = zip64End.getLong(40);
+          cenOffset = zip64End.getLong(48);
+          endPos = zip64EndPos;
+        }
+      }
+    }
+
+    // Data may have been prepended to the archive, which shifts every offset
+    long base = endPos - cenSize - cenOffset;
+    if (base < 0 || cenSize > Integer.MAX_VALUE) {
+      throw new ZipException("Bad central directory");
+    }
+    ByteBuffer cen = region(base + cenOffset, (int) cenSize);
+    try {
+      return readEntries(cen, base, count);
+    } catch (IndexOutOfBoundsException e) {
+      throw new ZipException("Bad central directory");
+    }
+  }
+
+  private static List<Entry> readEntries(ByteBuffer cen, long base, long count) {
+
+    List<Entry> result = new ArrayList<>((int) Math.min(count, 1 << 16));
+    byte[] nameBytes = new byte[256];
+    int pos = 0;
+    while (pos + CEN_HEADER <= cen.limit() && cen.getInt(pos) == CEN_SIG) {
+      int method = u16(cen, pos + 10);
+      int dosTime = cen.getInt(pos + 12);
+      long crc = u32(cen, pos + 16);
+      long compressedSize = u32(cen, pos + 20);
+      long size = u32(cen, pos + 24);
+      int nameLength = u16(cen, pos + 28);
+      int extraLength = u16(cen, pos + 30);
+      int commentLength = u16(cen, pos + 32);
+      long offset = u32(cen, pos + 42);
+
+      int namePos = pos + CEN_HEADER;
+      if (nameBytes.length < nameLength) {
+        nameBytes = new byte[nameLength];
+      }
+      cen.position(namePos);
+      cen.get(nameBytes, 0, nameLength);
+      String name = new String(nameBytes, 0, nameLength, UTF_8);
+
+      // Values that did not fit are in the zip64 extra field, in this order. Like ZipEntry, the
+      // last time found in an extra field replaces the DOS time.
+      long time = dosToJavaTime(dosTime);
+      int extraPos = namePos + nameLength;
+      int extraEnd = extraPos + extraLength;
+      while (extraPos + 4 <= extraEnd) {
+        int tag = u16(cen, extraPos);
+        int dataSize = u16(cen, extraPos + 2);
+        int dataPos = extraPos + 4;
+        int dataEnd = dataPos + dataSize;
+        if (dataEnd > extraEnd) {
+          break;
+        }
+        if (tag == ZIP64_EXTRA) {
+          if (size == ZIP64_MAGIC && dataPos + 8 <= dataEnd) {
+            size = cen.getLong(dataPos);
+            dataPos += 8;
+          }
+          if (compressedSize == ZIP64_MAGIC && dataPos + 8 <= dataEnd) {
+            compressedSize = cen.getLong(dataPos);
+            dataPos += 8;
+          }
+          if (offset == ZIP64_MAGIC && dataPos + 8 <= dataEnd) {
+            offset = cen.getLong(dataPos);
+          }
+        } else if (tag == EXTENDED_TIME_EXTRA) {
+          if ((cen.get(dataPos) & 0x1) != 0 && dataSize >= 5) {
+            time = cen.getInt(dataPos + 1) * 1000L;
+          }
+        } else if (tag == NTFS_EXTRA) {
+          if (dataSize >= 32 && u16(cen, dataPos + 4) == 0x0001 && u16(cen, dataPos + 6) == 24) {
+            long windowsTime = cen.getLong(dataPos + 8);
+            if (windowsTime != Long.MIN_VALUE) {
+              time = (windowsTime / 10 + WINDOWS_EPOCH_IN_MICROSECONDS) / 1000;
+            }
+          }
+        }
+        extraPos = dataEnd;
+      }
+
+      result.add(new Entry(name, method, crc, compressedSize, size, base + offset, time));
+      pos = namePos + nameLength + extraLength + commentLength;
+    }
+    return result;
+  }
+
+  /** Converts the time the same way as {@link java.util.zip.ZipEntry#getTime}. */
+  private static long dosToJavaTime(int dosTime) {
+    int year = ((dosTime >> 25) & 0x7f) + 1980;
+    int month = (dosTime >> 21) & 0x0f;
+    int day = (dosTime >> 16) & 0x1f;
+    int hour = (dosTime >> 11) & 0x1f;
+    int minute = (dosTime >> 5) & 0x3f;
+    int second = (dosTime << 1) & 0x3e;
+    LocalDateTime date;
+    try {
+      date = LocalDateTime.of(year, month, day, hour, minute, second);
+    } catch (DateTimeException e) {
+      // Out of range fields carry over, as they do for java.util.Date
+      date =
+          LocalDateTime.of(year, 1, 1, 0, 0)
+              .plusMonths(month - 1)
+              .plusDays(day - 1)
+              .plusHours(hour)
+              .plusMinutes(minute)
+              .plusSeconds(second);
+    }
+    ZoneId zone = ZoneId.systemDefault();
+    return date.toEpochSecond(zone.getRules().getOffset(date)) * 1000L;
+  }
+
+  /** Returns {@code length} bytes of the file from {@code position}, in little-endian order. */
+  private ByteBuffer region(long position, int length) throws IOException {
+    if (position < 0 || position + length > fileSize) {
+      throw new EOFException("Unexpected end of " + file);
+    }
+    ByteBuffer result;
+    if (mapping != null) {
+      ByteBuffer view = mapping.duplicate();
+      view.position((int) position);
+      view.limit((int) position + length);
+      result = view.slice();
+    } else if (map) {
+      result = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    } else {
+      result = ByteBuffer.allocate(length);
+      while (result.hasRemaining()) {
+        if (channel.read(result, position + result.position()) < 0) {
+          throw new EOFException("Unexpected end of " + file);
+        }
+      }
+      result.flip();
+    }
+    return result.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static int u16(ByteBuffer buffer, int index) {
+    return buffer.getShort(index) & 0xFFFF;
+  }
+
+  private static long u32(ByteBuffer buffer, int index) {
+    return buffer.getInt(index) & ZIP64_MAGIC;
+  }
+
+  /**
+   * Closes the file. Slices that were handed out stay readable, as the mapping is only released
+   * once they are all unreachable.
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /** Reads stored data straight from the mapping. */
+  private static final class BufferInputStream extends InputStream {
+    private final ByteBuffer data;
+
+    BufferInputStream(ByteBuffer data) {
+      this.data = data;
+    }
+
+    @Override
+    public int read() {
+      return data.hasRemaining() ? data.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!data.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, data.remaining());
+      data.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return data.remaining();
+    }
+  }
+
+  /** Inflates deflated data straight from the mapping. */
+  private static final class InflatingInputStream extends InputStream {
+    private final String name;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] single = new byte[1];
+
+    InflatingInputStream(String name, ByteBuffer data) {
+      this.name = name;
+      inflater.setInput(data);
+    }
+
+    @Override
+    public int read() throws IOException {
+      return (read(single, 0, 1) < 0) ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      try {
+        int n;
+        while ((n = inflater.inflate(b, off, len)) == 0) {
+          if (inflater.finished()) {
+            return -1;
+          }
+          if (inflater.needsInput() || inflater.needsDictionary()) {
+            throw new EOFException("Unexpected end of " + name);
+          }
+        }
+        return n;
+      } catch (DataFormatException e) {
+        throw new ZipException(e.getMessage() + " in " + name);
+      }
+    }
+
+    @Override
+    public void close() {
+      inflater.end();
+    }
+  }
+}
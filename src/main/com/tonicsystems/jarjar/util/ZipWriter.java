@@ -0,0 +1,389 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a ZIP file whose entries are either compressed here or copied as already compressed
+ * data.
+ *
+ * <p>{@link java.util.zip.ZipOutputStream} always compresses the data it is given, so entries read
+ * with {@link ZipReader} and not changed since would be inflated and deflated again for nothing.
+ *
+ * <p>Compression is separate from writing: {@link #compress} may be called from several threads,
+ * while entries are written from one thread, in order. The output only depends on that order.
+ *
+ * <p>The entries go to a temporary file next to the target, which only replaces the target on
+ * {@link #finish}. Closing the writer without finishing it, because writing failed, deletes the
+ * temporary file and leaves the target as it was.
+ */
+final class ZipWriter implements Closeable {
+  private static final int LOC_SIG = 0x04034b50;
+  private static final int CEN_SIG = 0x02014b50;
+  private static final int END_SIG = 0x06054b50;
+  private static final int ZIP64_END_SIG = 0x06064b50;
+  private static final int ZIP64_LOC_SIG = 0x07064b50;
+
+  private static final int UTF8_FLAG = 0x0800;
+  private static final int ZIP64_EXTRA = 0x0001;
+  private static final int EXTENDED_TIME_EXTRA = 0x5455;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+  private static final int DOS_TIME_BEFORE_1980 = (1 << 21) | (1 << 16);
+
+  /** Data compressed by {@link #compress}, ready to be written. */
+  static final class Compressed {
+    final int method;
+    final long crc;
+    final long size;
+    final ByteBuffer data;
+
+    Compressed(int method, long crc, long size, ByteBuffer data) {
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.data = data;
+    }
+  }
+
+  private final Path target;
+  private final Path temp;
+  private final FileChannel out;
+  private boolean finished;
+  private final int method;
+  private final int level;
+  private final ByteArrayOutputStream cen = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+  private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+  private long written;
+  private long count;
+
+  ZipWriter(File file) throws IOException {
+    this(file, ZipReader.DEFLATED, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param method how new entries are compressed, either {@link ZipReader#STORED} or {@link
+   *     ZipReader#DEFLATED}
+   * @param level the {@link Deflater} level used for {@link ZipReader#DEFLATED}
+   */
+  ZipWriter(File file, int method, int level) throws IOException {
+    if (method != ZipReader.STORED && method != ZipReader.DEFLATED) {
+      throw new IllegalArgumentException("Unsupported compression method: " + method);
+    }
+    this.method = method;
+    this.level = level;
+    this.target = file.getAbsoluteFile().toPath();
+    this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+    this.out =
+        FileChannel.open(
+            temp,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /** Returns how new entries are compressed. */
+  int getMethod() {
+    return method;
+  }
+
+  /** Compresses {@code data} and writes it as a new entry. */
+  void write(String name, long time, byte[] data) throws IOException {
+    write(name, time, compress(data));
+  }
+
+  /**
+   * Compresses {@code data} for {@link #write(String, long, Compressed)}. This is safe to call from
+   * several threads, and the result does not depend on which thread does the work.
+   *
+   * <p>Stored entries need their size and checksum in the local header, since no data descriptor
+   * is written, so those are computed here for both methods.
+   */
+  Compressed compress(byte[] data) {
+    return compress(ByteBuffer.wrap(data));
+  }
+
+  /**
+   * Compresses the remaining bytes of {@code data}, which may be a direct buffer, without copying
+   * them to the heap. Stored entries keep a view of {@code data}, so it must not change until they
+   * are written.
+   */
+  Compressed compress(ByteBuffer data) {
+    int size = data.remaining();
+    CRC32 crc = new CRC32();
+    crc.update(data.duplicate());
+    if (method == ZipReader.STORED) {
+      return new Compressed(ZipReader.STORED, crc.getValue(), size, data.duplicate());
+    }
+    Deflater deflater = deflaters.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level, true);
+    }
+    try {
+      deflater.setInput(data.duplicate());
+      deflater.finish();
+      // Enough for most data, including data that does not compress at all
+      byte[] deflated = new byte[size + (size >> 12) + (size >> 14) + 64];
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == deflated.length) {
+          deflated = Arrays.copyOf(deflated, length * 2);
+        }
+        length += deflater.deflate(deflated, length, deflated.length - length);
+      }
+      return new Compressed(
+          ZipReader.DEFLATED, crc.getValue(), size, ByteBuffer.wrap(deflated, 0, length));
+    } finally {
+      deflater.reset();
+      deflaters.add(deflater);
+    }
+  }
+
+  /** Writes an entry compressed by {@link #compress}. */
+  void write(String name, long time, Compressed compressed) throws IOException {
+    ByteBuffer data = compressed.data.duplicate();
+    writeEntry(name, time, compressed.method, compressed.crc, compressed.size, data);
+  }
+
+  /** Writes an entry whose data is already compressed with {@code method}. */
+  void writeRaw(String name, long time, int method, long crc, long size, byte[] compressed)
+      throws IOException {
+    writeRaw(name, time, method, crc, size, ByteBuffer.wrap(compressed));
+  }
+
+  /** Writes the remaining bytes of {@code compressed}, already compressed with {@code method}. */
+  void writeRaw(String name, long time, int method, long crc, long size, ByteBuffer compressed)
+      throws IOException {
+    writeEntry(name, time, method, crc, size, compressed.duplicate());
+  }
+
+  private void writeEntry(
+      String name, long time, int method, long crc, long size, ByteBuffer compressed)
+      throws IOException {
+    int length = compressed.remaining();
+    byte[] nameBytes = name.getBytes(UTF_8);
+    int dosTime = javaToDosTime(time);
+    boolean extendedTime = needsExtendedTime(time);
+    boolean zip64Sizes = size >= ZIP64_MAGIC || length >= ZIP64_MAGIC;
+    boolean zip64Offset = written >= ZIP64_MAGIC;
+    int version = (zip64Sizes || zip64Offset) ? 45 : (method == ZipReader.STORED) ? 10 : 20;
+
+    ByteArrayOutputStream localExtra = new ByteArrayOutputStream();
+    if (zip64Sizes) {
+      writeShort(localExtra, ZIP64_EXTRA);
+      writeShort(localExtra, 16);
+      writeLong(localExtra, size);
+      writeLong(localExtra, length);
+    }
+    if (extendedTime) {
+      writeExtendedTime(localExtra, time);
+    }
+
+    long offset = written;
+    header.reset();
+    writeInt(header, LOC_SIG);
+    writeShort(header, version);
+    writeShort(header, UTF8_FLAG);
+    writeShort(header, method);
+    writeInt(header, dosTime);
+    writeInt(header, (int) crc);
+    writeInt(header, zip64Sizes ? (int) ZIP64_MAGIC : length);
+    writeInt(header, zip64Sizes ? (int) ZIP64_MAGIC : (int) size);
+    writeShort(header, nameBytes.length);
+    writeShort(header, localExtra.size());
+    header.write(nameBytes);
+    localExtra.writeTo(header);
+    writeFully(ByteBuffer.wrap(header.toByteArray()));
+    writeFully(compressed);
+
+    ByteArrayOutputStream centralExtra = new ByteArrayOutputStream();
+    if (zip64Sizes || zip64Offset) {
+      writeShort(centralExtra, ZIP64_EXTRA);
+      writeShort(centralExtra, (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0));
+      if (zip64Sizes) {
+        writeLong(centralExtra, size);
+        writeLong(centralExtra, length);
+      }
+      if (zip64Offset) {
+        writeLong(centralExtra, offset);
+      }
+    }
+    if (extendedTime) {
+      writeExtendedTime(centralExtra, time);
+    }
+
+    writeInt(cen, CEN_SIG);
+    writeShort(cen, version);
+    writeShort(cen, version);
+    writeShort(cen, UTF8_FLAG);
+    writeShort(cen, method);
+    writeInt(cen, dosTime);
+    writeInt(cen, (int) crc);
+    writeInt(cen, zip64Sizes ? (int) ZIP64_MAGIC : length);
+    writeInt(cen, zip64Sizes ? (int) ZIP64_MAGIC : (int) size);
+    writeShort(cen, nameBytes.length);
+    writeShort(cen, centralExtra.size());
+    writeShort(cen, 0); // comment length
+    writeShort(cen, 0); // disk number
+    writeShort(cen, 0); // internal attributes
+    writeInt(cen, 0); // external attributes
+    writeInt(cen, zip64Offset ? (int) ZIP64_MAGIC : (int) offset);
+    cen.write(nameBytes);
+    centralExtra.writeTo(cen);
+    count++;
+  }
+
+  /** Writes the central directory once all the entries are written, and replaces the target. */
+  void finish() throws IOException {
+    writeEnd();
+    out.close();
+    try {
+      Files.move(
+          temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+    finished = true;
+  }
+
+  /** Releases the writer, deleting what it wrote unless it was {@link #finish finished}. */
+  @Override
+  public void close() throws IOException {
+    try {
+      for (Deflater deflater : deflaters) {
+        deflater.end();
+      }
+      out.close();
+    } finally {
+      if (!finished) {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  /** Writes the central directory and the end records. */
+  private void writeEnd() throws IOException {
+    long cenOffset = written;
+    long cenSize = cen.size();
+    // The end records are written along with the central directory
+    boolean zip64 = count >= 0xFFFF || cenOffset >= ZIP64_MAGIC || cenSize >= ZIP64_MAGIC;
+    if (zip64) {
+      long zip64EndPos = cenOffset + cenSize;
+      writeInt(cen, ZIP64_END_SIG);
+      writeLong(cen, 44); // size of the rest of the record
+      writeShort(cen, 45);
+      writeShort(cen, 45);
+      writeInt(cen, 0);
+      writeInt(cen, 0);
+      writeLong(cen, count);
+      writeLong(cen, count);
+      writeLong(cen, cenSize);
+      writeLong(cen, cenOffset);
+
+      writeInt(cen, ZIP64_LOC_SIG);
+      writeInt(cen, 0);
+      writeLong(cen, zip64EndPos);
+      writeInt(cen, 1);
+    }
+
+    writeInt(cen, END_SIG);
+    writeShort(cen, 0);
+    writeShort(cen, 0);
+    writeShort(cen, zip64 ? 0xFFFF : (int) count);
+    writeShort(cen, zip64 ? 0xFFFF : (int) count);
+    writeInt(cen, zip64 ? (int) ZIP64_MAGIC : (int) cenSize);
+    writeInt(cen, zip64 ? (int) ZIP64_MAGIC : (int) cenOffset);
+    writeShort(cen, 0); // comment length
+    writeFully(ByteBuffer.wrap(cen.toByteArray()));
+  }
+
+  /** Appends the remaining bytes of {@code buffer} with positional writes, at the current end. */
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      written += out.write(buffer, written);
+    }
+  }
+
+  /** Converts the time the same way as {@link java.util.zip.ZipEntry#setTime}. */
+  private static int javaToDosTime(long time) {
+    LocalDateTime date = toLocalDateTime(time);
+    int year = date.getYear() - 1980;
+    if (year < 0) {
+      return DOS_TIME_BEFORE_1980;
+    }
+    return (year << 25)
+        | (date.getMonthValue() << 21)
+        | (date.getDayOfMonth() << 16)
+        | (date.getHour() << 11)
+        | (date.getMinute() << 5)
+        | (date.getSecond() >> 1);
+  }
+
+  /** Returns true for times that the DOS format cannot hold, as {@code ZipEntry} decides it. */
+  private static boolean needsExtendedTime(long time) {
+    int year = toLocalDateTime(time).getYear();
+    return year < 1980 || year > 2099;
+  }
+
+  private static LocalDateTime toLocalDateTime(long time) {
+    return LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+  }
+
+  private static void writeExtendedTime(OutputStream out, long time) throws IOException {
+    writeShort(out, EXTENDED_TIME_EXTRA);
+    writeShort(out, 5);
+    out.write(0x1); // only the modification time is present
+    writeInt(out, (int) Math.floorDiv(time, 1000L));
+  }
+
+  private static void writeShort(OutputStream out, int v) throws IOException {
+    out.write(v & 0xFF);
+    out.write((v >>> 8) & 0xFF);
+  }
+
+  private static void writeInt(OutputStream out, int v) throws IOException {
+    writeShort(out, v & 0xFFFF);
+    writeShort(out, (v >>> 16) & 0xFFFF);
+  }
+
+  private static void writeLong(OutputStream out, long v) throws IOException {
+    writeInt(out, (int) v);
+    writeInt(out, (int) (v >>> 32));
+  }
+}
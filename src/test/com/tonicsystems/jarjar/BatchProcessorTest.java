@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.tonicsystems.jarjar.util.StandaloneJarProcessor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+public class BatchProcessorTest extends TestCase {
+  public void testRun_eachJarProcessedOnItsOwn() throws Exception {
+    RuleSet rules =
+        new RuleSet(
+            RulesFileParser.parse("rule org.example.** shaded.@1\nkeep org.example.Root*\n"),
+            false);
+    // Each root keeps the class it refers to, which exists in both jars
+    File first = writeJar("org/example/RootA", "org/example/A", "org/example/B");
+    File second = writeJar("org/example/RootB", "org/example/B", "org/example/A");
+    List<BatchProcessor.Job> jobs = new ArrayList<>();
+    jobs.add(new BatchProcessor.Job(first, File.createTempFile("first", ".jar")));
+    jobs.add(
+        new BatchProcessor.Job(
+            new File(first.getPath() + ".missing"), File.createTempFile("missing", ".jar")));
+    jobs.add(new BatchProcessor.Job(second, File.createTempFile("second", ".jar")));
+
+    Map<BatchProcessor.Job, Exception> failures =
+        new BatchProcessor(
+                rules,
+                false,
+                MainProcessor.Engine.ASM,
+                new StandaloneJarProcessor.Options().setThreads(2),
+                null)
+            .run(jobs);
+
+    assertEquals(Collections.singletonList(jobs.get(1)), new ArrayList<>(failures.keySet()));
+    assertEquals("[shaded/A.class, shaded/RootA.class]", readNames(jobs.get(0).to));
+    assertEquals("[shaded/B.class, shaded/RootB.class]", readNames(jobs.get(2).to));
+  }
+
+  public void testReadJobs() throws Exception {
+    File listFile = File.createTempFile("jobs", ".txt");
+    Files.write(
+        listFile.toPath(),
+        "# Comment\n\na.jar  out/a.jar\n\tb.jar\tout/b.jar \n".getBytes(UTF_8));
+    List<BatchProcessor.Job> jobs = BatchProcessor.readJobs(listFile);
+    assertEquals(2, jobs.size());
+    File dir = listFile.getAbsoluteFile().getParentFile();
+    assertEquals(new File(dir, "a.jar"), jobs.get(0).from);
+    assertEquals(new File(dir, "out/b.jar"), jobs.get(1).to);
+
+    Files.write(listFile.toPath(), "a.jar\n".getBytes(UTF_8));
+    try {
+      BatchProcessor.readJobs(listFile);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testReadJobs_pathsAreRelativeToTheListFile() throws Exception {
+    File dir = Files.createTempDirectory("jobs").toFile();
+    File listFile = new File(dir, "jobs.txt");
+    File absolute = new File(dir, "elsewhere/c.jar").getAbsoluteFile();
+    Files.write(listFile.toPath(), ("lib/a.jar " + absolute + "\n").getBytes(UTF_8));
+    List<BatchProcessor.Job> jobs = BatchProcessor.readJobs(listFile);
+    assertEquals(new File(dir, "lib/a.jar").getAbsoluteFile(), jobs.get(0).from);
+    assertEquals(absolute, jobs.get(0).to);
+  }
+
+  /** Writes a jar with a root class referring to {@code used}, and an unused class. */
+  private static File writeJar(String root, String used, String unused) throws Exception {
+    File file = File.createTempFile("test", ".jar");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      out.putNextEntry(new ZipEntry(root + ".class"));
+      out.write(createClass(root, used));
+      out.putNextEntry(new ZipEntry(used + ".class"));
+      out.write(createClass(used, "java/lang/Object"));
+      out.putNextEntry(new ZipEntry(unused + ".class"));
+      out.write(createClass(unused, "java/lang/Object"));
+    }
+    return file;
+  }
+
+  private static byte[] createClass(String name, String superName) {
+    ClassWriter cw = new ClassWriter(0);
+    cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, superName, null);
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  private static String readNames(File jar) throws Exception {
+    TreeSet<String> names = new TreeSet<>();
+    try (ZipFile zip = new ZipFile(jar)) {
+      for (ZipEntry entry : Collections.list(zip.entries())) {
+        names.add(entry.getName());
+      }
+    }
+    return names.toString();
+  }
+
+  public BatchProcessorTest(String name) {
+    super(name);
+  }
+}
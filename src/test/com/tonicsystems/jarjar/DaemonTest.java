@@ -0,0 +1,153 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+
+public class DaemonTest extends TestCase {
+  private File dir;
+  private File stateFile;
+  private ServerSocket server;
+  private Thread serverThread;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = Files.createTempDirectory("daemon").toFile();
+    stateFile = new File(dir, "state");
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    PrintStream log = new PrintStream(new ByteArrayOutputStream());
+    serverThread =
+        new Thread(
+            () -> {
+              try {
+                Daemon.serve(server, stateFile, log);
+              } catch (Exception e) {
+                throw new IllegalStateException(e);
+              }
+            });
+    serverThread.setDaemon(true);
+    serverThread.start();
+    while (!stateFile.exists()) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.close();
+    serverThread.join();
+    assertFalse(stateFile.exists());
+  }
+
+  public void testProcess_sameAsInProcess() throws Exception {
+    File rules = new File(dir, "rules.txt");
+    Files.write(rules.toPath(), "rule org.example.** shaded.@1\n".getBytes(UTF_8));
+    File inJar = new File(dir, "in.jar");
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(inJar.toPath()))) {
+      for (String name : new String[] {"org/example/a.txt", "org/example/b.txt", "other.txt"}) {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(name.getBytes(UTF_8));
+      }
+    }
+
+    File expected = new File(dir, "expected.jar");
+    new Main(new Properties(), System.out, System.err, null, null)
+        .run(Arrays.asList("process", rules.getPath(), inJar.getPath(), expected.getPath()));
+
+    // The second run finds the rules compiled
+    for (int i = 0; i < 2; i++) {
+      File actual = new File(dir, "actual" + i + ".jar");
+      assertEquals(
+          0,
+          forward(Arrays.asList("process", rules.getPath(), inJar.getPath(), actual.getPath())));
+      assertTrue(
+          Arrays.equals(
+              Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath())));
+    }
+    try (ZipFile zip = new ZipFile(expected)) {
+      assertNotNull(zip.getEntry("shaded/a.txt"));
+    }
+  }
+
+  public void testFailure_reportedToClient() throws Exception {
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    int status =
+        Daemon.forward(
+            stateFile,
+            Arrays.asList("process", new File(dir, "missing.txt").getPath(), "in.jar", "out.jar"),
+            new Properties(),
+            new PrintStream(new ByteArrayOutputStream()),
+            new PrintStream(err, true));
+    assertEquals(1, status);
+    assertTrue(err.toString(), err.toString().contains("missing.txt"));
+  }
+
+  public void testStrings_outputForwarded() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    File jar = new File(Daemon.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    int status =
+        Daemon.forward(
+            stateFile,
+            Arrays.asList("strings", jar.getPath()),
+            new Properties(),
+            new PrintStream(out, true),
+            new PrintStream(new ByteArrayOutputStream()));
+    assertEquals(0, status);
+    assertTrue(out.toString(UTF_8.name()).contains("No daemon is running, see "));
+  }
+
+  public void testWrongToken_rejected() throws Exception {
+    String port = new String(Files.readAllBytes(stateFile.toPath()), UTF_8).split(" ")[0];
+    char[] token = new char[64];
+    Arrays.fill(token, '0');
+    File wrongState = new File(dir, "wrong");
+    Files.write(wrongState.toPath(), (port + " " + new String(token)).getBytes(UTF_8));
+    try {
+      Daemon.forward(
+          wrongState,
+          Arrays.asList("help"),
+          new Properties(),
+          System.out,
+          new PrintStream(new ByteArrayOutputStream()));
+      fail();
+    } catch (EOFException expected) {
+    }
+  }
+
+  private int forward(List<String> args) throws Exception {
+    return Daemon.forward(stateFile, args, new Properties(), System.out, System.err);
+  }
+
+  public DaemonTest(String name) {
+    super(name);
+  }
+}
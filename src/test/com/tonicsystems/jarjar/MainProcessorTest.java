@@ -0,0 +1,472 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+import com.tonicsystems.jarjar.util.EntryCache;
+import com.tonicsystems.jarjar.util.EntryStruct;
+import com.tonicsystems.jarjar.util.StandaloneJarProcessor;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.TypeReference;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceClassVisitor;
+
+public class MainProcessorTest extends TestCase {
+  private static final int CLASSES = 200;
+  private static final int THREADS = 16;
+  private static final int ROUNDS = 4;
+
+  public void testProcess_concurrentCallsMatchSingleThreadedRun() throws Exception {
+    List<PatternElement> rules =
+        RulesFileParser.parse(
+            "rule org.example.p1.** com.shaded.one.@1\n"
+                + "rule org.example.*.C1* com.shaded.c1.@1.@2\n"
+                + "rule org.example.** com.shaded.@1\n"
+                + "zap org.example.p7.**\n"
+                + "keep org.example.p0.C0\n");
+    List<EntryStruct> inputs = createEntries();
+
+    MainProcessor expectedProc = new MainProcessor(rules, false, false);
+    List<EntryStruct> expected = new ArrayList<>();
+    for (EntryStruct input : inputs) {
+      EntryStruct entry = copy(input);
+      expected.add(expectedProc.process(entry) ? entry : null);
+    }
+
+    MainProcessor sharedProc = new MainProcessor(rules, false, false);
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<List<EntryStruct>>> futures = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        futures.add(executor.submit(new Hammer(sharedProc, inputs, new Random(t))));
+      }
+      for (Future<List<EntryStruct>> future : futures) {
+        List<EntryStruct> actual = future.get();
+        for (int i = 0; i < inputs.size(); i++) {
+          assertSameEntry(expected.get(i), actual.get(i));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertFalse(expectedProc.getExcludes().isEmpty());
+    assertEquals(expectedProc.getExcludes(), sharedProc.getExcludes());
+  }
+
+  public void testProcess_cachedRunsMatchUncachedRun() throws Exception {
+    List<PatternElement> rules =
+        RulesFileParser.parse(
+            "rule org.example.p1.** com.shaded.one.@1\n"
+                + "zap org.example.p7.**\n"
+                + "keep org.example.p0.C0\n");
+    List<EntryStruct> inputs = createEntries();
+
+    MainProcessor expectedProc = new MainProcessor(rules, false, false);
+    List<EntryStruct> expected = new ArrayList<>();
+    for (EntryStruct input : inputs) {
+      EntryStruct entry = copy(input);
+      expected.add(expectedProc.process(entry) ? entry : null);
+    }
+
+    File dir = Files.createTempDirectory("cache").toFile();
+    // The first run fills the cache, the second reads from it
+    for (int run = 0; run < 2; run++) {
+      MainProcessor proc = new MainProcessor(rules, false, false);
+      try (EntryCache cache = new EntryCache(dir, Long.MAX_VALUE)) {
+        proc.setCache(cache);
+        for (int i = 0; i < inputs.size(); i++) {
+          EntryStruct entry = copy(inputs.get(i));
+          assertSameEntry(expected.get(i), proc.process(entry) ? entry : null);
+        }
+      }
+      assertEquals(expectedProc.getExcludes(), proc.getExcludes());
+    }
+
+    // Different rules must not see the results of these ones
+    MainProcessor otherProc =
+        new MainProcessor(RulesFileParser.parse("zap org.example.**\n"), false, false);
+    try (EntryCache cache = new EntryCache(dir, Long.MAX_VALUE)) {
+      otherProc.setCache(cache);
+      EntryStruct entry = copy(inputs.get(2));
+      assertFalse(otherProc.process(entry));
+    }
+  }
+
+  public void testFingerprint_changesWithTheSettings() throws Exception {
+    List<PatternElement> rules = RulesFileParser.parse("rule org.example.** com.shaded.@1\n");
+    // The code jarjar runs from is readable here, so it is part of the fingerprint
+    byte[] fingerprint = new MainProcessor(rules, false, false).getFingerprint();
+    assertNotNull(fingerprint);
+    assertTrue(Arrays.equals(fingerprint, new MainProcessor(rules, true, false).getFingerprint()));
+    assertFalse(Arrays.equals(fingerprint, new MainProcessor(rules, false, true).getFingerprint()));
+    assertFalse(
+        Arrays.equals(
+            fingerprint,
+            new MainProcessor(rules, false, false, MainProcessor.Engine.ASM_COPY)
+                .getFingerprint()));
+    assertFalse(
+        Arrays.equals(
+            fingerprint,
+            new MainProcessor(RulesFileParser.parse("zap org.example.**\n"), false, false)
+                .getFingerprint()));
+  }
+
+  public void testProcess_constantPoolEngineMatchesAsm() throws Exception {
+    assertSameAsAsm(MainProcessor.Engine.CONSTANT_POOL);
+  }
+
+  public void testProcess_asmCopyEngineMatchesAsm() throws Exception {
+    assertSameAsAsm(MainProcessor.Engine.ASM_COPY);
+  }
+
+  public void testProcess_eachExcludedEntryIsLoggedOnce() throws Exception {
+    List<PatternElement> rules = RulesFileParser.parse("keep org.example.p0.C0\n");
+    File in = File.createTempFile("input", ".jar");
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(in.toPath()))) {
+      for (EntryStruct entry : createEntries()) {
+        out.putNextEntry(new ZipEntry(entry.name));
+        out.write(entry.data);
+      }
+    }
+    File out = File.createTempFile("output", ".jar");
+    MainProcessor proc = new MainProcessor(rules, true, false);
+
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    PrintStream err = System.err;
+    System.setErr(new PrintStream(log, true, "UTF-8"));
+    try {
+      StandaloneJarProcessor.run(in, out, proc);
+      proc.getExcludes(); // asking again logs nothing
+    } finally {
+      System.setErr(err);
+    }
+    List<String> excluded =
+        Arrays.stream(log.toString("UTF-8").split("\n"))
+            .filter((line) -> line.startsWith("Excluding "))
+            .collect(toList());
+    assertFalse(excluded.isEmpty());
+    assertEquals(proc.getExcludes().size(), excluded.size());
+    assertEquals(excluded.size(), excluded.stream().distinct().count());
+  }
+
+  /** Checks that {@code engine} produces the same classes as {@link MainProcessor.Engine#ASM}. */
+  private static void assertSameAsAsm(MainProcessor.Engine engine) throws Exception {
+    List<PatternElement> rules =
+        RulesFileParser.parse(
+            "rule org.objectweb.asm.tree.*Node shaded.nodes.@1\n"
+                + "rule org.objectweb.asm.** shaded.asm.@1\n"
+                + "rule com.tonicsystems.jarjar.util.** shaded.util.@1\n"
+                + "rule Foo shaded.Foo\n");
+    List<EntryStruct> inputs = new ArrayList<>();
+    inputs.addAll(readClasses(ClassReader.class));
+    inputs.addAll(readClasses(Remapper.class));
+    inputs.addAll(readClasses(Textifier.class));
+    inputs.addAll(readClasses(MainProcessor.class));
+    inputs.add(createEntry("Foo.class", createConflictingClass()));
+    inputs.add(createEntry("org/objectweb/asm/Sample.class", createSampleClass()));
+
+    MainProcessor asm = new MainProcessor(rules, false, false, MainProcessor.Engine.ASM);
+    MainProcessor other = new MainProcessor(rules, false, false, engine);
+    int changed = 0;
+    for (EntryStruct input : inputs) {
+      EntryStruct expected = copy(input);
+      EntryStruct actual = copy(input);
+      assertEquals(asm.process(expected), other.process(actual));
+      assertEquals(expected.name, actual.name);
+      if (expected.isClass()) {
+        assertEquals(expected.name, printClass(expected.data), printClass(actual.data));
+      } else {
+        assertTrue(expected.name, Arrays.equals(expected.data, actual.data));
+      }
+      if (!Arrays.equals(input.data, actual.data)) {
+        changed++;
+      }
+    }
+    assertTrue(changed > 100);
+  }
+
+  private static String printClass(byte[] data) {
+    StringWriter sw = new StringWriter();
+    new ClassReader(data)
+        .accept(
+            new TraceClassVisitor(null, new Textifier(), new PrintWriter(sw)),
+            ClassReader.EXPAND_FRAMES);
+    return sw.toString();
+  }
+
+  /** Reads the classes of the jar or directory that {@code type} was loaded from. */
+  private static List<EntryStruct> readClasses(Class<?> type) throws Exception {
+    Path path = Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI());
+    List<EntryStruct> result = new ArrayList<>();
+    if (Files.isDirectory(path)) {
+      List<Path> files;
+      try (Stream<Path> stream = Files.walk(path)) {
+        files = stream.filter((f) -> f.toString().endsWith(".class")).sorted().collect(toList());
+      }
+      for (Path file : files) {
+        String name = path.relativize(file).toString().replace(File.separatorChar, '/');
+        result.add(createEntry(name, Files.readAllBytes(file)));
+      }
+    } else {
+      try (ZipFile zip = new ZipFile(path.toFile())) {
+        for (ZipEntry entry : Collections.list(zip.entries())) {
+          if (!entry.isDirectory()) {
+            result.add(createEntry(entry.getName(), zip.getInputStream(entry).readAllBytes()));
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private static EntryStruct createEntry(String name, byte[] data) {
+    EntryStruct entry = new EntryStruct();
+    entry.name = name;
+    entry.data = data;
+    return entry;
+  }
+
+  /** Creates a class whose name is also used for a field, which the rules map differently. */
+  private static byte[] createConflictingClass() {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "Foo", null, "java/lang/Object", null);
+    cw.visitField(Opcodes.ACC_PUBLIC, "Foo", "LFoo;", null, null).visitEnd();
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  /** Creates a class that uses most of the places a class file can refer to names. */
+  private static byte[] createSampleClass() {
+    String name = "org/objectweb/asm/Sample";
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(
+        Opcodes.V17,
+        Opcodes.ACC_PUBLIC | Opcodes.ACC_RECORD,
+        name,
+        "<T:Lorg/objectweb/asm/Type;>Ljava/lang/Record;",
+        "java/lang/Record",
+        new String[] {"org/objectweb/asm/Opcodes"});
+    cw.visitSource("Sample.java", null);
+    cw.visitInnerClass(name + "$Inner", name, "Inner", Opcodes.ACC_STATIC);
+    cw.visitRecordComponent("type", "Lorg/objectweb/asm/Type;", "TT;").visitEnd();
+
+    AnnotationVisitor av = cw.visitAnnotation("Lorg/objectweb/asm/Marker;", true);
+    av.visit("string", "org.objectweb.asm.Type");
+    av.visit("class", org.objectweb.asm.Type.getType("Lorg/objectweb/asm/Label;"));
+    av.visitEnum("enum", "Lorg/objectweb/asm/Kind;", "CLASS");
+    av.visitAnnotation("nested", "Lorg/objectweb/asm/Nested;").visitEnd();
+    AnnotationVisitor array = av.visitArray("array");
+    array.visit(null, "org/objectweb/asm/Sample");
+    array.visitEnd();
+    av.visitEnd();
+
+    FieldVisitor fv =
+        cw.visitField(
+            Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL,
+            "NAME",
+            "Ljava/lang/String;",
+            null,
+            "org.objectweb.asm.Label");
+    fv.visitTypeAnnotation(
+            TypeReference.newTypeReference(TypeReference.FIELD).getValue(),
+            null,
+            "Lorg/objectweb/asm/Marker;",
+            false)
+        .visitEnd();
+    fv.visitEnd();
+
+    MethodVisitor mv =
+        cw.visitMethod(
+            Opcodes.ACC_PUBLIC,
+            "run",
+            "(Lorg/objectweb/asm/Label;)Ljava/util/List;",
+            "(Lorg/objectweb/asm/Label;)Ljava/util/List<Lorg/objectweb/asm/Label;>;",
+            new String[] {"org/objectweb/asm/MethodTooLargeException"});
+    mv.visitParameterAnnotation(0, "Lorg/objectweb/asm/Marker;", true).visitEnd();
+    mv.visitCode();
+    Label start = new Label();
+    Label end = new Label();
+    mv.visitLabel(start);
+    mv.visitLdcInsn(1L);
+    mv.visitInsn(Opcodes.POP2);
+    mv.visitLdcInsn(org.objectweb.asm.Type.getType("[Lorg/objectweb/asm/Label;"));
+    mv.visitInsn(Opcodes.POP);
+    mv.visitLdcInsn(org.objectweb.asm.Type.getMethodType("(Lorg/objectweb/asm/Label;)V"));
+    mv.visitInsn(Opcodes.POP);
+    mv.visitLdcInsn("org/objectweb/asm/Sample");
+    mv.visitInsn(Opcodes.POP);
+    mv.visitInvokeDynamicInsn(
+        "get",
+        "()Lorg/objectweb/asm/Label;",
+        new Handle(
+            Opcodes.H_INVOKESTATIC,
+            "org/objectweb/asm/Bootstrap",
+            "bootstrap",
+            "(Ljava/lang/Object;)Ljava/lang/Object;",
+            false),
+        "org.objectweb.asm.Label",
+        new Handle(Opcodes.H_GETFIELD, name, "field", "Lorg/objectweb/asm/Label;", false));
+    mv.visitTypeInsn(Opcodes.CHECKCAST, "org/objectweb/asm/Label");
+    mv.visitFieldInsn(Opcodes.PUTSTATIC, name, "last", "Lorg/objectweb/asm/Label;");
+    mv.visitInsn(Opcodes.ACONST_NULL);
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitLabel(end);
+    mv.visitLocalVariable("label", "Lorg/objectweb/asm/Label;", "TT;", start, end, 1);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "value", "()Ljava/lang/Class;", null, null);
+    AnnotationVisitor dv = mv.visitAnnotationDefault();
+    dv.visit(null, org.objectweb.asm.Type.getType("Lorg/objectweb/asm/Label;"));
+    dv.visitEnd();
+    mv.visitEnd();
+
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  /** Processes every input entry several times, in a different order each round. */
+  private static class Hammer implements Callable<List<EntryStruct>> {
+    private final MainProcessor proc;
+    private final List<EntryStruct> inputs;
+    private final Random random;
+
+    Hammer(MainProcessor proc, List<EntryStruct> inputs, Random random) {
+      this.proc = proc;
+      this.inputs = inputs;
+      this.random = random;
+    }
+
+    @Override
+    public List<EntryStruct> call() throws Exception {
+      List<Integer> order = new ArrayList<>();
+      for (int i = 0; i < inputs.size(); i++) {
+        order.add(i);
+      }
+      EntryStruct[] results = new EntryStruct[inputs.size()];
+      for (int round = 0; round < ROUNDS; round++) {
+        Collections.shuffle(order, random);
+        for (int i : order) {
+          EntryStruct entry = copy(inputs.get(i));
+          results[i] = proc.process(entry) ? entry : null;
+        }
+      }
+      return Arrays.asList(results);
+    }
+  }
+
+  private static void assertSameEntry(EntryStruct expected, EntryStruct actual) {
+    if (expected == null) {
+      assertNull(actual);
+      return;
+    }
+    assertEquals(expected.name, actual.name);
+    assertTrue(expected.name, Arrays.equals(expected.data, actual.data));
+  }
+
+  private static List<EntryStruct> createEntries() {
+    List<EntryStruct> entries = new ArrayList<>();
+    for (int i = 0; i < CLASSES; i++) {
+      EntryStruct entry = new EntryStruct();
+      entry.name = className(i) + ".class";
+      entry.data = createClass(i);
+      entries.add(entry);
+
+      EntryStruct resource = new EntryStruct();
+      resource.name = "org/example/p" + (i % 10) + "/resource" + i + ".txt";
+      resource.data = ("resource " + i).getBytes(UTF_8);
+      entries.add(resource);
+    }
+    return entries;
+  }
+
+  private static String className(int i) {
+    return "org/example/p" + (i % 10) + "/C" + i;
+  }
+
+  /** Creates a class that references the next class by type, by string and by array string. */
+  private static byte[] createClass(int i) {
+    String name = className(i);
+    String next = className((i + 10) % CLASSES);
+    String other = className((i * 7) % CLASSES);
+
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+    cw.visitField(Opcodes.ACC_PRIVATE, "next", "L" + next + ";", null, null).visitEnd();
+
+    MethodVisitor mv =
+        cw.visitMethod(Opcodes.ACC_PUBLIC, "get", "()Ljava/lang/Object;", null, null);
+    mv.visitCode();
+    mv.visitLdcInsn(other.replace('/', '.'));
+    mv.visitInsn(Opcodes.POP);
+    mv.visitLdcInsn("[L" + next.replace('/', '.') + ";");
+    mv.visitInsn(Opcodes.POP);
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitFieldInsn(Opcodes.GETFIELD, name, "next", "L" + next + ";");
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  private static EntryStruct copy(EntryStruct entry) {
+    EntryStruct result = new EntryStruct();
+    result.name = entry.name;
+    result.time = entry.time;
+    result.data = entry.data.clone();
+    return result;
+  }
+
+  public MainProcessorTest(String name) {
+    super(name);
+  }
+}
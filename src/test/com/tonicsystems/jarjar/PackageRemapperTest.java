@@ -51,6 +51,22 @@ public class PackageRemapperTest extends TestCase {
     assertEquals("foo/example.package-info", remapper.mapValue("org/example.package-info"));
   }
 
+  public void testMapDescriptors() {
+    String desc = "(Ljava/lang/String;)V";
+    assertSame(desc, remapper.mapMethodDesc(desc));
+    assertSame(desc, remapper.mapMethodDesc(new String(desc)));
+    assertEquals(
+        "([Lfoo/example/A;I)Lfoo/B;", remapper.mapMethodDesc("([Lorg/example/A;I)Lorg/B;"));
+    assertEquals("[[Lfoo/example/A;", remapper.mapDesc("[[Lorg/example/A;"));
+    assertEquals("Ljava/lang/Object;", remapper.mapDesc("Ljava/lang/Object;"));
+
+    assertEquals("foo/example/A", remapper.mapType("org/example/A"));
+    assertEquals("[Lfoo/example/A;", remapper.mapType("[Lorg/example/A;"));
+    String name = "java/lang/String";
+    assertSame(name, remapper.mapType(name));
+    assertNull(remapper.mapType(null));
+  }
+
   private void assertUnchangedValue(String value) {
     assertEquals(value, remapper.mapValue(value));
   }
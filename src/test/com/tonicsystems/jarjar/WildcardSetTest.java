@@ -0,0 +1,90 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class WildcardSetTest extends TestCase {
+  public void testReplace_firstMatchWins() {
+    WildcardSet set =
+        new WildcardSet(
+            Arrays.asList(
+                new Wildcard("org/apache/commons/**", "a/@1"),
+                new Wildcard("org/**", "b/@1"),
+                new Wildcard("org/apache/**", "c/@1"),
+                new Wildcard("**/Foo", "d/@1"),
+                new Wildcard("org/*/Bar", "e/@1")));
+
+    assertEquals("a/lang/X", set.replace("org/apache/commons/lang/X"));
+    assertEquals("b/apache/X", set.replace("org/apache/X"));
+    assertEquals("b/x/Bar", set.replace("org/x/Bar"));
+    assertEquals("d/com/x", set.replace("com/x/Foo"));
+    assertNull(set.replace("com/x/Bar"));
+    assertTrue(set.matches("com/x/Foo"));
+    assertFalse(set.matches("com/x/Bar"));
+  }
+
+  public void testReplace_sameAsLinearScan() {
+    String[] segments = {"org", "com", "apache", "foo", "bar", "Baz", "Foo"};
+    Random random = new Random(0);
+    List<Wildcard> wildcards = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      StringBuilder pattern = new StringBuilder();
+      int length = 1 + random.nextInt(4);
+      for (int j = 0; j < length; j++) {
+        if (j > 0) {
+          pattern.append('/');
+        }
+        int kind = random.nextInt(8);
+        pattern.append(kind == 0 ? "*" : kind == 1 ? "**" : segments[random.nextInt(7)]);
+      }
+      if (pattern.toString().equals("**")) {
+        continue;
+      }
+      wildcards.add(new Wildcard(pattern.toString(), "r" + i + "/@0"));
+    }
+    WildcardSet set = new WildcardSet(wildcards);
+
+    for (int i = 0; i < 2000; i++) {
+      StringBuilder value = new StringBuilder();
+      int length = 1 + random.nextInt(5);
+      for (int j = 0; j < length; j++) {
+        if (j > 0) {
+          value.append('/');
+        }
+        value.append(segments[random.nextInt(7)]);
+      }
+      String expected = null;
+      for (Wildcard wildcard : wildcards) {
+        expected = wildcard.replace(value.toString());
+        if (expected != null) {
+          break;
+        }
+      }
+      assertEquals(value.toString(), expected, set.replace(value.toString()));
+      assertEquals(value.toString(), expected != null, set.matches(value.toString()));
+    }
+  }
+
+  public WildcardSetTest(String name) {
+    super(name);
+  }
+}
@@ -16,6 +16,9 @@
 
 package com.tonicsystems.jarjar;
 
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -35,6 +38,133 @@ public class WildcardTest extends TestCase {
     wildcard("net/sf/cglib/*/*", "foo/@2/@1", "net/sf/cglib/Bar/Baz", "foo/Baz/Bar");
   }
 
+  public void testWildcards_anchorsAndLineTerminators() {
+    wildcard("net/sf/Foo$Bar", "foo/Bar", "net/sf/Foo$Bar", null);
+    wildcard("net/sf/Foo$", "foo/Bar", "net/sf/Foo", "foo/Bar");
+    wildcard("net/sf/**$", "foo/@1", "net/sf/Foo\u0085", null);
+    wildcard("net/sf/**$\u0085", "foo/@1", "net/sf/Foo\u0085", "foo/Foo");
+    wildcard("net/sf/**\u0085", "foo/@1", "net/sf/\u0085", "foo/");
+    wildcard("net/sf/**/Bar", "foo/@1", "net/sf/a\u0085b/Bar", null);
+    wildcard("net/sf/*/Bar", "foo/@1", "net/sf/a\u0085b/Bar", "foo/a\u0085b");
+    wildcard("net/sf/*/Bar", "foo/@1", "net/sf/a\nb/Bar", null);
+  }
+
+  /** Checks the hand-written matcher against the regular expressions it replaced. */
+  public void testWildcards_sameAsRegex() {
+    String[] pieces = {
+      "a", "b", "ab", "/", "-", ".", "$", "_", "\u0085", "\n", "!", "\ud83d\ude00",
+      "package-info"
+    };
+    Random random = new Random(0);
+    for (int i = 0; i < 20000; i++) {
+      StringBuilder pattern = new StringBuilder();
+      for (int j = random.nextInt(6); j >= 0; j--) {
+        switch (random.nextInt(4)) {
+          case 0:
+            pattern.append('*');
+            break;
+          case 1:
+            pattern.append("**");
+            break;
+          default:
+            pattern.append(pieces[random.nextInt(pieces.length)]);
+        }
+      }
+      String result = random.nextBoolean() ? "x/@0" : "x/@1/@2";
+
+      Wildcard wildcard;
+      RegexWildcard expected;
+      try {
+        expected = new RegexWildcard(pattern.toString(), result);
+      } catch (IllegalArgumentException e) {
+        try {
+          new Wildcard(pattern.toString(), result);
+          fail("Expected " + e.getMessage());
+        } catch (IllegalArgumentException actual) {
+          assertEquals(e.getMessage(), actual.getMessage());
+        }
+        continue;
+      }
+      wildcard = new Wildcard(pattern.toString(), result);
+
+      for (int j = 0; j < 20; j++) {
+        StringBuilder value = new StringBuilder();
+        for (int k = random.nextInt(8); k >= 0; k--) {
+          value.append(pieces[random.nextInt(pieces.length)]);
+        }
+        String v = value.toString();
+        String message = "pattern=" + pattern + " value=" + v;
+        assertEquals(message, expected.replace(v), wildcard.replace(v));
+        assertEquals(message, expected.matches(v), wildcard.matches(v));
+      }
+    }
+  }
+
+  /** The regular expression based implementation of {@link Wildcard} prior to 2024. */
+  private static class RegexWildcard {
+    private static final Pattern DSTAR = Pattern.compile("\\*\\*");
+    private static final Pattern STAR = Pattern.compile("\\*");
+    private static final Pattern ESTAR = Pattern.compile("\\+\\??\\)\\Z");
+
+    private final Pattern pattern;
+    private final String[] resultParts;
+
+    RegexWildcard(String pattern, String result) {
+      // The validation of patterns and results is unchanged
+      new Wildcard(pattern, result);
+      String regex = pattern;
+      regex = replaceAllLiteral(DSTAR, regex, "(.+?)");
+      regex = replaceAllLiteral(STAR, regex, "([^/]+)");
+      regex = replaceAllLiteral(ESTAR, regex, "*)");
+      this.pattern = Pattern.compile("\\A" + regex + "\\Z");
+      this.resultParts = result.split("@", -1);
+    }
+
+    boolean matches(String value) {
+      return getMatcher(value) != null;
+    }
+
+    String replace(String value) {
+      Matcher matcher = getMatcher(value);
+      if (matcher == null) {
+        return null;
+      }
+      StringBuilder sb = new StringBuilder(resultParts[0].replace('.', '/'));
+      for (int i = 1; i < resultParts.length; i++) {
+        String part = resultParts[i];
+        sb.append(matcher.group(part.charAt(0) - '0'));
+        sb.append(part.substring(1).replace('.', '/'));
+      }
+      return sb.toString();
+    }
+
+    private Matcher getMatcher(String value) {
+      Matcher matcher = pattern.matcher(value);
+      if (matcher.matches() && checkIdentifierChars(value)) {
+        return matcher;
+      }
+      return null;
+    }
+
+    private static boolean checkIdentifierChars(String expr) {
+      if (expr.endsWith("package-info")) {
+        expr = expr.substring(0, expr.length() - "package-info".length());
+      }
+      for (int i = 0, len = expr.length(); i < len; i++) {
+        char c = expr.charAt(i);
+        if (c != '/' && c != '-' && !Character.isJavaIdentifierPart(c)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static String replaceAllLiteral(Pattern pattern, String value, String replace) {
+      replace = replace.replaceAll("([$\\\\])", "\\\\$0");
+      return pattern.matcher(value).replaceAll(replace);
+    }
+  }
+
   private void wildcard(String pattern, String result, String value, String expect) {
     Wildcard wc = new Wildcard(pattern, result);
     // System.err.println(wc);
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+@SuppressWarnings("JdkImmutableCollections")
+public class ConstantPoolFilterTest extends TestCase {
+  private final ConstantPoolFilter filter =
+      ConstantPoolFilter.forPrefixes(List.of("org/example/Foo", "com/\u00e9t\u00e9/"));
+
+  public void testMayMatch_typeReference() {
+    assertTrue(filter.mayMatch(createClass("a/A", "org/example/Foo", null)));
+    assertTrue(filter.mayMatch(createClass("a/A", "[Lorg/example/Bar;", null)));
+    assertTrue(filter.mayMatch(createClass("com/\u00e9t\u00e9/A", "java/lang/Object", null)));
+  }
+
+  public void testMayMatch_stringConstant() {
+    assertTrue(filter.mayMatch(createClass("a/A", "java/lang/Object", "org.example.Baz")));
+    assertTrue(filter.mayMatch(createClass("a/A", "java/lang/Object", "/org/example/x.txt")));
+  }
+
+  public void testMayMatch_unrelatedClass() {
+    assertFalse(filter.mayMatch(createClass("a/A", "org/other/Foo", "org.examples")));
+  }
+
+  public void testMayMatch_notAClass() {
+    assertTrue(filter.mayMatch(new byte[] {1, 2, 3}));
+    byte[] truncated = createClass("a/A", "java/lang/Object", null);
+    assertTrue(filter.mayMatch(Arrays.copyOf(truncated, 20)));
+  }
+
+  public void testForPrefixes_prefixWithoutPackage() {
+    assertNull(ConstantPoolFilter.forPrefixes(List.of("org/example/", "Foo")));
+  }
+
+  private static byte[] createClass(String name, String superName, String constant) {
+    ClassWriter cw = new ClassWriter(0);
+    cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, superName, null);
+    if (constant != null) {
+      MethodVisitor mv =
+          cw.visitMethod(Opcodes.ACC_PUBLIC, "get", "()Ljava/lang/Object;", null, null);
+      mv.visitCode();
+      mv.visitLdcInsn(constant);
+      mv.visitInsn(Opcodes.ARETURN);
+      mv.visitMaxs(1, 1);
+      mv.visitEnd();
+    }
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  public ConstantPoolFilterTest(String name) {
+    super(name);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import junit.framework.TestCase;
+
+public class EntryCacheTest extends TestCase {
+  private static final byte[] SALT = "salt".getBytes(UTF_8);
+
+  public void testGet_returnsWhatWasPut() throws Exception {
+    File dir = Files.createTempDirectory("cache").toFile();
+    byte[] renamed = key("a.txt", "A");
+    byte[] unchanged = key("b.txt", "B");
+    byte[] dropped = key("c.txt", "C");
+    try (EntryCache cache = new EntryCache(dir, Long.MAX_VALUE)) {
+      assertNull(cache.get(renamed));
+      cache.put(renamed, new EntryCache.Result("d.txt", "D".getBytes(UTF_8)));
+      cache.put(unchanged, new EntryCache.Result("b.txt", null));
+      cache.put(dropped, new EntryCache.Result(null, null));
+    }
+
+    try (EntryCache cache = new EntryCache(dir, Long.MAX_VALUE)) {
+      EntryCache.Result result = cache.get(renamed);
+      assertEquals("d.txt", result.name);
+      assertEquals("D", new String(result.data, UTF_8));
+
+      result = cache.get(unchanged);
+      assertEquals("b.txt", result.name);
+      assertNull(result.data);
+
+      result = cache.get(dropped);
+      assertNull(result.name);
+      assertNull(result.data);
+    }
+  }
+
+  public void testKey_dependsOnEverything() {
+    byte[] key = key("a.txt", "A");
+    assertTrue(Arrays.equals(key, key("a.txt", "A")));
+    assertFalse(Arrays.equals(key, key("b.txt", "A")));
+    assertFalse(Arrays.equals(key, key("a.txt", "B")));
+    assertFalse(
+        Arrays.equals(
+            key, EntryCache.key("other".getBytes(UTF_8), "a.txt", "A".getBytes(UTF_8))));
+    // The name and data are not simply concatenated
+    assertFalse(Arrays.equals(key("ab", "c"), key("a", "bc")));
+  }
+
+  public void testGet_corruptResultIsMissing() throws Exception {
+    File dir = Files.createTempDirectory("cache").toFile();
+    byte[] key = key("a.txt", "A");
+    try (EntryCache cache = new EntryCache(dir, Long.MAX_VALUE)) {
+      cache.put(key, new EntryCache.Result("a.txt", "AAAA".getBytes(UTF_8)));
+      Path file = results(dir).get(0);
+      byte[] bytes = Files.readAllBytes(file);
+      Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+      assertNull(cache.get(key));
+      Files.write(file, "garbage".getBytes(UTF_8));
+      assertNull(cache.get(key));
+    }
+  }
+
+  public void testClose_evictsLeastRecentlyUsed() throws Exception {
+    File dir = Files.createTempDirectory("cache").toFile();
+    byte[] data = new byte[1000];
+    byte[][] keys = new byte[4][];
+    try (EntryCache cache = new EntryCache(dir, Long.MAX_VALUE)) {
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = key("entry" + i, "data");
+        cache.put(keys[i], new EntryCache.Result("entry" + i, data));
+      }
+    }
+    List<Path> files = results(dir);
+    assertEquals(4, files.size());
+    long size = Files.size(files.get(0));
+    long time = System.currentTimeMillis() - 100000;
+    for (Path file : files) {
+      Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+    }
+
+    // Reading entries 1 and 3 makes them the most recently used
+    try (EntryCache cache = new EntryCache(dir, size * 2)) {
+      assertNotNull(cache.get(keys[1]));
+      assertNotNull(cache.get(keys[3]));
+    }
+    assertEquals(2, results(dir).size());
+    try (EntryCache cache = new EntryCache(dir, size * 2)) {
+      assertNull(cache.get(keys[0]));
+      assertNotNull(cache.get(keys[1]));
+      assertNull(cache.get(keys[2]));
+      assertNotNull(cache.get(keys[3]));
+    }
+  }
+
+  private static byte[] key(String name, String data) {
+    return EntryCache.key(SALT, name, data.getBytes(UTF_8));
+  }
+
+  /** Returns the result files in {@code dir}. */
+  private static List<Path> results(File dir) throws IOException {
+    try (Stream<Path> stream = Files.walk(dir.toPath(), 2)) {
+      return stream
+          .filter(p -> p.getNameCount() - dir.toPath().getNameCount() == 2)
+          .collect(Collectors.toList());
+    }
+  }
+
+  public EntryCacheTest(String name) {
+    super(name);
+  }
+}
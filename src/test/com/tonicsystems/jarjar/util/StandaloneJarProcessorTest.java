@@ -19,12 +19,25 @@ package com.tonicsystems.jarjar.util;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Files;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -58,6 +71,139 @@ public class StandaloneJarProcessorTest extends TestCase {
         List.of(createEntry("foo/bar/A.class", "Goodbye")));
   }
 
+  public void testProcessor_canExcludeEntriesAfterProcessingAll() throws Exception {
+    assertJarTransformation(
+        List.of(
+            createEntry("foo/", ""),
+            createEntry("foo/A.class", "Hello"),
+            createEntry("qux/", ""),
+            createEntry("qux/B.class", "Hello")),
+        new JarProcessor() {
+          @Override
+          public boolean process(EntryStruct struct) {
+            struct.name = struct.name.replace("qux/", "zaf/");
+            return true;
+          }
+
+          @Override
+          public Set<String> getExcludes() {
+            return Set.of("zaf/B.class");
+          }
+        },
+        List.of(createEntry("foo/", ""), createEntry("foo/A.class", "Hello")));
+  }
+
+  public void testProcessor_rejectedNamesAreNotProcessed() throws Exception {
+    assertJarTransformation(
+        List.of(createEntry("foo/A.class", "Hello"), createEntry("foo/B.class", "Hello")),
+        new JarProcessor() {
+          @Override
+          public boolean process(EntryStruct struct) {
+            assertEquals("foo/A.class", struct.name);
+            return true;
+          }
+
+          @Override
+          public boolean accepts(String name) {
+            return !name.equals("foo/B.class");
+          }
+        },
+        List.of(createEntry("foo/A.class", "Hello")));
+  }
+
+  public void testChain_entriesOnlyReachProcessorsOfTheirKind() throws Exception {
+    List<String> seen = Collections.synchronizedList(new ArrayList<>());
+    assertJarTransformation(
+        List.of(
+            createEntry("META-INF/MANIFEST.MF", "Hello"),
+            createEntry("META-INF/services/foo.Bar", "Hello"),
+            createEntry("foo/A.class", "Hello"),
+            createEntry("foo/a.txt", "Hello")),
+        new JarProcessorChain(
+            new JarProcessor[] {
+              new KindProcessor(EntryKind.CLASS, seen),
+              new KindProcessor(EntryKind.MANIFEST, seen),
+              new KindProcessor(EntryKind.SERVICE, seen),
+              new JarProcessor() {
+                @Override
+                public boolean process(EntryStruct struct) {
+                  // Renamed entries are routed by their new name for the rest of the chain
+                  struct.name = struct.name.replace("a.txt", "B.class");
+                  return true;
+                }
+
+                @Override
+                public Set<EntryKind> getKinds() {
+                  return EnumSet.of(EntryKind.RESOURCE);
+                }
+              },
+              new KindProcessor(EntryKind.CLASS, seen),
+            }),
+        List.of(
+            createEntry("META-INF/MANIFEST.MF", "Hello"),
+            createEntry("META-INF/services/foo.Bar", "Hello"),
+            createEntry("foo/A.class", "Hello"),
+            createEntry("foo/B.class", "Hello")));
+    Collections.sort(seen);
+    assertEquals(
+        List.of(
+            "CLASS foo/A.class",
+            "CLASS foo/A.class",
+            "CLASS foo/B.class",
+            "MANIFEST META-INF/MANIFEST.MF",
+            "SERVICE META-INF/services/foo.Bar"),
+        seen);
+  }
+
+  public void testProcessor_inputCanBeTheOutput() throws Exception {
+    File jar =
+        writeJar(
+            List.of(createEntry("foo/A.class", "Hello"), createEntry("foo/B.class", "Hello")));
+    StandaloneJarProcessor.run(
+        jar,
+        jar,
+        (e) -> {
+          if (e.name.equals("foo/B.class")) {
+            e.data = "Goodbye".getBytes(UTF_8);
+          }
+          return true;
+        });
+    List<EntryStruct> entries = readJar(jar);
+    assertEquals(2, entries.size());
+    assertEquals("Hello", new String(entries.get(0).data, UTF_8));
+    assertEquals("Goodbye", new String(entries.get(1).data, UTF_8));
+    assertFalse(new File(jar.getPath() + ".tmp").exists());
+  }
+
+  public void testProcessor_failureKeepsThePreviousOutput() throws Exception {
+    File inJar = writeJar(List.of(createEntry("foo/A.class", "Hello")));
+    File outJar = writeJar(List.of(createEntry("foo/Old.class", "Old")));
+    byte[] before = Files.readAllBytes(outJar.toPath());
+    try {
+      StandaloneJarProcessor.run(
+          inJar,
+          outJar,
+          (e) -> {
+            throw new IOException("broken");
+          });
+      fail();
+    } catch (IOException expected) {
+    }
+    assertTrue(Arrays.equals(before, Files.readAllBytes(outJar.toPath())));
+    assertFalse(new File(outJar.getPath() + ".tmp").exists());
+  }
+
+  public void testZipWriter_unfinishedOutputIsDiscarded() throws Exception {
+    File outJar = writeJar(List.of(createEntry("foo/Old.class", "Old")));
+    byte[] before = Files.readAllBytes(outJar.toPath());
+    try (ZipWriter writer = new ZipWriter(outJar)) {
+      writer.write("foo/A.class", ARBITRARY_INSTANT.toEpochMilli(), "Hello".getBytes(UTF_8));
+      // Not finished, as if writing the next entry had failed
+    }
+    assertTrue(Arrays.equals(before, Files.readAllBytes(outJar.toPath())));
+    assertFalse(new File(outJar.getPath() + ".tmp").exists());
+  }
+
   public void testDuplicateEntries_dirsAreDeduped_deterministic() throws Exception {
     assertJarTransformation(
         List.of(
@@ -84,7 +230,7 @@ public class StandaloneJarProcessorTest extends TestCase {
           writeJar(
               List.of(
                   createEntry("foo/bar/B.class", "Hello"),
-                  createEntry("qux/bar/B.class", "Hello"))),
+                  createEntry("qux/bar/B.class", "Goodbye"))),
           File.createTempFile("unused", "jar"),
           (e) -> {
             e.name = e.name.replace("foo/", "qux/");
@@ -96,6 +242,109 @@ public class StandaloneJarProcessorTest extends TestCase {
     fail();
   }
 
+  public void testDuplicateEntries_sameContentIsWrittenOnce() throws Exception {
+    assertJarTransformation(
+        List.of(
+            createEntry("foo/bar/B.class", "Hello"), //
+            createEntry("qux/bar/B.class", "Hello")),
+        (e) -> {
+          e.name = e.name.replace("foo/", "qux/");
+          return true;
+        },
+        List.of(createEntry("qux/bar/B.class", "Hello")));
+  }
+
+  public void testDuplicateEntries_manifestsOfOneJarAreReported() throws Exception {
+    // Only the manifests of different jars are merged by keeping the first one
+    try {
+      StandaloneJarProcessor.run(
+          writeJar(
+              List.of(
+                  createEntry("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n"),
+                  createEntry("other/MANIFEST.MF", "Manifest-Version: 2.0\n"))),
+          File.createTempFile("unused", "jar"),
+          (e) -> {
+            e.name = e.name.replace("other/", "META-INF/");
+            return true;
+          });
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertEquals("Duplicate jar entries: META-INF/MANIFEST.MF", expected.getMessage());
+    }
+  }
+
+  public void testMultipleInputs_mergedIntoOneJar() throws Exception {
+    File first =
+        writeJar(
+            List.of(
+                createEntry("META-INF/", ""),
+                createEntry("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n"),
+                createEntry("META-INF/services/", ""),
+                createEntry("META-INF/services/foo.Service", "foo.One"),
+                createEntry("foo/A.class", "A"),
+                createEntry("foo/Same.class", "Same")));
+    File second =
+        writeJar(
+            List.of(
+                createEntry("META-INF/", ""),
+                createEntry("META-INF/MANIFEST.MF", "Manifest-Version: 2.0\n"),
+                createEntry("META-INF/services/", ""),
+                createEntry("META-INF/services/foo.Service", "foo.Two\n"),
+                createEntry("foo/B.class", "B"),
+                createEntry("foo/Same.class", "Same")));
+    JarProcessor processor =
+        (e) -> {
+          e.name = e.name.replace("foo/", "bar/");
+          return true;
+        };
+
+    File outJar = File.createTempFile("merged", "jar");
+    StandaloneJarProcessor.run(
+        List.of(first, second), outJar, processor, new StandaloneJarProcessor.Options());
+    List<EntryStruct> outEntries = readJar(outJar);
+    List<String> names = new ArrayList<>();
+    for (EntryStruct entry : outEntries) {
+      names.add(entry.name);
+    }
+    assertEquals(
+        List.of(
+            "META-INF/",
+            "META-INF/MANIFEST.MF",
+            "META-INF/services/",
+            "META-INF/services/foo.Service",
+            "bar/A.class",
+            "bar/B.class",
+            "bar/Same.class"),
+        names);
+    assertEquals("Manifest-Version: 1.0\n", new String(outEntries.get(1).data, UTF_8));
+    assertEquals("foo.One\nfoo.Two\n", new String(outEntries.get(3).data, UTF_8));
+    assertEquals("Same", new String(outEntries.get(6).data, UTF_8));
+
+    // The services file is not reused from the previous output, which would repeat its lines
+    File incrementalJar = File.createTempFile("incremental", "jar");
+    for (int i = 0; i < 2; i++) {
+      StandaloneJarProcessor.run(
+          List.of(first, second),
+          incrementalJar,
+          new RenamingProcessor("v1", Set.of()),
+          incremental());
+    }
+    outEntries = readJar(incrementalJar);
+    assertEquals("foo.One\nfoo.Two\n", new String(outEntries.get(3).data, UTF_8));
+
+    File conflicting = writeJar(List.of(createEntry("foo/A.class", "Other")));
+    try {
+      StandaloneJarProcessor.run(
+          List.of(first, conflicting),
+          File.createTempFile("unused", "jar"),
+          processor,
+          new StandaloneJarProcessor.Options());
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertEquals("Duplicate jar entries: bar/A.class", expected.getMessage());
+    }
+  }
+
   public void testOutput_entriesSorted_afterRenaming() throws Exception {
     assertJarTransformation(
         List.of(
@@ -163,6 +412,500 @@ public class StandaloneJarProcessorTest extends TestCase {
             createEntry("foo/baz/B.class", createClass("foo/baz/B"))));
   }
 
+  public void testOutput_sameForAnyNumberOfThreads() throws Exception {
+    List<EntryStruct> inEntries = new ArrayList<>();
+    for (int i = 0; i < 7; i++) {
+      inEntries.add(createEntry("foo/" + i + "/", ""));
+    }
+    for (int i = 0; i < 200; i++) {
+      inEntries.add(createEntry("foo/" + (i % 7) + "/A" + i + ".class", createClass("foo/A" + i)));
+    }
+    File inJar = writeJar(inEntries);
+    JarProcessor processor =
+        (e) -> {
+          e.name = e.name.replace("foo/3/", "bar/");
+          return !e.name.startsWith("foo/5/");
+        };
+
+    File sequentialJar = File.createTempFile("sequential", "jar");
+    StandaloneJarProcessor.run(inJar, sequentialJar, processor);
+    File parallelJar = File.createTempFile("parallel", "jar");
+    StandaloneJarProcessor.run(
+        inJar, parallelJar, processor, new StandaloneJarProcessor.Options().setThreads(4));
+
+    assertTrue(
+        Arrays.equals(
+            Files.readAllBytes(sequentialJar.toPath()), Files.readAllBytes(parallelJar.toPath())));
+  }
+
+  public void testOutput_changedEntries_sameForAnyNumberOfThreads() throws Exception {
+    List<EntryStruct> inEntries = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      inEntries.add(createEntry("foo/A" + i + ".class", createClass("foo/A" + i)));
+    }
+    File inJar = writeJar(inEntries);
+    JarProcessor processor =
+        (e) -> {
+          if (e.name.contains("1")) {
+            e.data = Arrays.copyOf(e.data, e.data.length * 3);
+          }
+          return true;
+        };
+
+    File sequentialJar = File.createTempFile("sequential", "jar");
+    StandaloneJarProcessor.run(inJar, sequentialJar, processor);
+    for (int threads : new int[] {2, 7}) {
+      for (int writeAhead : new int[] {1, threads * 4, 500}) {
+        File parallelJar = File.createTempFile("parallel", "jar");
+        StandaloneJarProcessor.run(
+            inJar,
+            parallelJar,
+            processor,
+            new StandaloneJarProcessor.Options()
+                .setThreads(threads)
+                .setMemoryBudget(4096)
+                .setWriteAhead(writeAhead));
+        assertTrue(
+            Arrays.equals(
+                Files.readAllBytes(sequentialJar.toPath()),
+                Files.readAllBytes(parallelJar.toPath())));
+      }
+    }
+
+    List<EntryStruct> outEntries = readJar(sequentialJar);
+    assertEquals(200, outEntries.size());
+    for (EntryStruct entry : outEntries) {
+      int length = createClass(entry.name.replace(".class", "")).length;
+      assertEquals(entry.name.contains("1") ? length * 3 : length, entry.data.length);
+    }
+  }
+
+  public void testOutput_sameForAnyMemoryBudget_onOrOffHeap() throws Exception {
+    List<EntryStruct> inEntries = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      inEntries.add(createEntry("foo/A" + i + ".class", createClass("foo/A" + i)));
+    }
+    File inJar = writeJar(inEntries);
+    JarProcessor processor =
+        (e) -> {
+          if (e.name.contains("1")) {
+            e.data = Arrays.copyOf(e.data, e.data.length + 1);
+          }
+          return true;
+        };
+
+    File expectedJar = File.createTempFile("expected", "jar");
+    StandaloneJarProcessor.run(inJar, expectedJar, processor);
+    for (long budget : new long[] {0, 4096, Long.MAX_VALUE}) {
+      for (boolean offHeap : new boolean[] {false, true}) {
+        for (int threads : new int[] {1, 4}) {
+          File actualJar = File.createTempFile("actual", "jar");
+          StandaloneJarProcessor.run(
+              inJar,
+              actualJar,
+              processor,
+              new StandaloneJarProcessor.Options()
+                  .setThreads(threads)
+                  .setMemoryBudget(budget)
+                  .setOffHeap(offHeap));
+          assertTrue(
+              Arrays.equals(
+                  Files.readAllBytes(expectedJar.toPath()),
+                  Files.readAllBytes(actualJar.toPath())));
+        }
+      }
+    }
+  }
+
+  public void testOutput_unchangedEntriesAreCopiedCompressed() throws Exception {
+    File inJar = File.createTempFile("test", "jar");
+    byte[] storedData = "Stored".getBytes(UTF_8);
+    try (ZipOutputStream outZip = IoUtil.bufferedZipOutput(inJar)) {
+      ZipEntry stored = new ZipEntry("foo/stored.txt");
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(storedData.length);
+      CRC32 crc = new CRC32();
+      crc.update(storedData);
+      stored.setCrc(crc.getValue());
+      outZip.putNextEntry(stored);
+      outZip.write(storedData);
+      outZip.putNextEntry(new ZipEntry("foo/changed.txt"));
+      outZip.write("Hello".getBytes(UTF_8));
+    }
+
+    File outJar = File.createTempFile("actual", "jar");
+    StandaloneJarProcessor.run(
+        inJar,
+        outJar,
+        (e) -> {
+          if (e.name.equals("foo/changed.txt")) {
+            e.data = "Goodbye".getBytes(UTF_8);
+          } else {
+            e.name = e.name.replace("foo/", "bar/");
+          }
+          return true;
+        });
+
+    try (ZipFile outZip = new ZipFile(outJar)) {
+      ZipEntry stored = outZip.getEntry("bar/stored.txt");
+      assertEquals(ZipEntry.STORED, stored.getMethod());
+      assertTrue(Arrays.equals(storedData, outZip.getInputStream(stored).readAllBytes()));
+      ZipEntry changed = outZip.getEntry("foo/changed.txt");
+      assertEquals(ZipEntry.DEFLATED, changed.getMethod());
+      assertEquals("Goodbye", new String(outZip.getInputStream(changed).readAllBytes(), UTF_8));
+    }
+  }
+
+  public void testOutput_compression() throws Exception {
+    List<EntryStruct> inEntries = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      inEntries.add(createEntry("foo/A" + i + ".class", createClass("foo/A" + i)));
+    }
+    File inJar = writeJar(inEntries);
+    JarProcessor processor =
+        (e) -> {
+          if (e.name.contains("1")) {
+            e.data = Arrays.copyOf(e.data, e.data.length * 3);
+          }
+          return true;
+        };
+
+    Map<StandaloneJarProcessor.Compression, Long> sizes = new HashMap<>();
+    for (StandaloneJarProcessor.Compression compression :
+        StandaloneJarProcessor.Compression.values()) {
+      File outJar = File.createTempFile("actual", "jar");
+      StandaloneJarProcessor.run(
+          inJar,
+          outJar,
+          processor,
+          new StandaloneJarProcessor.Options().setThreads(2).setCompression(compression));
+      sizes.put(compression, outJar.length());
+
+      int expectedMethod =
+          (compression == StandaloneJarProcessor.Compression.STORED)
+              ? ZipEntry.STORED
+              : ZipEntry.DEFLATED;
+      try (ZipFile outZip = new ZipFile(outJar)) {
+        assertEquals(20, outZip.size());
+        for (ZipEntry entry : Collections.list(outZip.entries())) {
+          assertEquals(entry.getName(), expectedMethod, entry.getMethod());
+          int length = createClass(entry.getName().replace(".class", "")).length;
+          byte[] data = outZip.getInputStream(entry).readAllBytes();
+          assertEquals(entry.getName().contains("1") ? length * 3 : length, data.length);
+        }
+      }
+    }
+    assertTrue(
+        sizes.get(StandaloneJarProcessor.Compression.MAX)
+            <= sizes.get(StandaloneJarProcessor.Compression.FAST));
+    assertTrue(
+        sizes.get(StandaloneJarProcessor.Compression.FAST)
+            < sizes.get(StandaloneJarProcessor.Compression.STORED));
+  }
+
+  public void testOutput_moreEntriesThanZipAllows_usesZip64() throws Exception {
+    List<EntryStruct> inEntries = new ArrayList<>();
+    for (int i = 0; i < 70000; i++) {
+      inEntries.add(createEntry("foo/" + i + ".txt", ""));
+    }
+    File outJar = File.createTempFile("actual", "jar");
+    StandaloneJarProcessor.run(writeJar(inEntries), outJar, (e) -> !e.name.endsWith("0.txt"));
+
+    try (ZipFile outZip = new ZipFile(outJar)) {
+      assertEquals(63000, outZip.size());
+      assertNotNull(outZip.getEntry("foo/69999.txt"));
+    }
+  }
+
+  public void testIncremental_processesOnlyChangedEntries() throws Exception {
+    List<EntryStruct> inEntries = new ArrayList<>();
+    inEntries.add(createEntry("foo/", ""));
+    for (int i = 0; i < 10; i++) {
+      inEntries.add(createEntry("foo/A" + i + ".class", createClass("foo/A" + i)));
+    }
+    inEntries.add(createEntry("foo/Drop.class", createClass("foo/Drop")));
+    File outJar = File.createTempFile("incremental", "jar");
+    RenamingProcessor first = new RenamingProcessor("v1", Set.of());
+    StandaloneJarProcessor.run(writeJar(inEntries), outJar, first, incremental());
+    assertEquals(12, first.processed.get());
+    assertTrue(IncrementalIndex.fileFor(outJar).isFile());
+
+    // Change, remove and add a class
+    inEntries.set(4, createEntry("foo/A3.class", createClass("foo/Changed")));
+    inEntries.remove(10);
+    inEntries.add(createEntry("foo/A10.class", createClass("foo/A10")));
+    File inJar = writeJar(inEntries);
+    RenamingProcessor second = new RenamingProcessor("v1", Set.of());
+    StandaloneJarProcessor.run(inJar, outJar, second, incremental());
+    assertEquals(3, second.processed.get()); // the directory, A3 and A10
+
+    File fullJar = File.createTempFile("full", "jar");
+    StandaloneJarProcessor.run(inJar, fullJar, new RenamingProcessor("v1", Set.of()));
+    assertTrue(
+        Arrays.equals(Files.readAllBytes(fullJar.toPath()), Files.readAllBytes(outJar.toPath())));
+  }
+
+  public void testIncremental_otherFingerprint_processesAllEntries() throws Exception {
+    File inJar = writeJar(List.of(createEntry("foo/A.class", "A"), createEntry("foo/B.txt", "B")));
+    File outJar = File.createTempFile("incremental", "jar");
+    StandaloneJarProcessor.run(inJar, outJar, new RenamingProcessor("v1", Set.of()), incremental());
+
+    RenamingProcessor second = new RenamingProcessor("v2", Set.of());
+    StandaloneJarProcessor.run(inJar, outJar, second, incremental());
+    assertEquals(2, second.processed.get());
+
+    RenamingProcessor third = new RenamingProcessor("v2", Set.of());
+    StandaloneJarProcessor.run(inJar, outJar, third, incremental());
+    assertEquals(0, third.processed.get());
+  }
+
+  public void testIncremental_otherExcludes_processesAllEntries() throws Exception {
+    File inJar =
+        writeJar(
+            List.of(
+                createEntry("foo/A1.class", createClass("foo/A1")),
+                createEntry("foo/A2.class", createClass("foo/A2"))));
+    File outJar = File.createTempFile("incremental", "jar");
+    StandaloneJarProcessor.run(
+        inJar, outJar, new RenamingProcessor("v1", Set.of("bar/A1.class")), incremental());
+
+    RenamingProcessor second = new RenamingProcessor("v1", Set.of("bar/A2.class"));
+    StandaloneJarProcessor.run(inJar, outJar, second, incremental());
+    assertEquals(2, second.processed.get());
+    List<EntryStruct> outEntries = readJar(outJar);
+    assertEquals(1, outEntries.size());
+    assertEquals("bar/A1.class", outEntries.get(0).name);
+    assertEquals(printData(createClass("foo/A1")), printData(outEntries.get(0).data));
+  }
+
+  public void testIncremental_unchangedEntriesAreOnlyReadIfNeeded() throws Exception {
+    File inJar = writeJar(List.of(createEntry("foo/A.txt", "Hello")));
+    File outJar = File.createTempFile("incremental", "jar");
+    StandaloneJarProcessor.run(inJar, outJar, new RenamingProcessor("v1", Set.of()), incremental());
+
+    RenamingProcessor second = new RenamingProcessor("v1", Set.of());
+    StandaloneJarProcessor.run(inJar, outJar, second, incremental());
+    assertEquals(0, second.processed.get());
+    assertEquals(1, second.unchanged.size());
+    assertNull(second.unchanged.get(0));
+
+    RenamingProcessor third = new RenamingProcessor("v1", Set.of());
+    third.readsUnchanged = true;
+    StandaloneJarProcessor.run(inJar, outJar, third, incremental());
+    assertEquals(0, third.processed.get());
+    assertEquals(1, third.unchanged.size());
+    assertEquals("Hello", new String(third.unchanged.get(0), UTF_8));
+  }
+
+  public void testAsyncProcessor_sameOutputAsSynchronous() throws Exception {
+    List<EntryStruct> inEntries = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      inEntries.add(createEntry("foo/A" + i + ".class", createClass("foo/A" + i)));
+    }
+    File inJar = writeJar(inEntries);
+    JarProcessor rename =
+        (e) -> {
+          e.name = e.name.replace("foo/", "bar/");
+          return !e.name.endsWith("7.class");
+        };
+    JarProcessor grow =
+        (e) -> {
+          if (e.name.contains("1")) {
+            e.data = Arrays.copyOf(e.data, e.data.length + 1);
+          }
+          return true;
+        };
+
+    File expectedJar = File.createTempFile("expected", "jar");
+    StandaloneJarProcessor.run(
+        inJar, expectedJar, new JarProcessorChain(new JarProcessor[] {rename, grow}));
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      for (int threads : new int[] {1, 4}) {
+        File actualJar = File.createTempFile("actual", "jar");
+        StandaloneJarProcessor.run(
+            inJar,
+            actualJar,
+            new AsyncJarProcessorChain(
+                new JarProcessor[] {AsyncJarProcessor.of(rename, executor), grow}),
+            new StandaloneJarProcessor.Options().setThreads(threads));
+        assertTrue(
+            Arrays.equals(
+                Files.readAllBytes(expectedJar.toPath()), Files.readAllBytes(actualJar.toPath())));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testAsyncProcessor_inFlightEntriesAreBoundedByWriteAhead() throws Exception {
+    List<EntryStruct> inEntries = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      inEntries.add(createEntry("foo/A" + i + ".txt", "Hello"));
+    }
+    File inJar = writeJar(inEntries);
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      AsyncJarProcessor slow =
+          (e) -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            return CompletableFuture.supplyAsync(
+                () -> {
+                  try {
+                    Thread.sleep(5);
+                  } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                  }
+                  inFlight.decrementAndGet();
+                  return e;
+                },
+                executor);
+          };
+      StandaloneJarProcessor.run(
+          inJar,
+          File.createTempFile("actual", "jar"),
+          slow,
+          new StandaloneJarProcessor.Options().setThreads(4).setWriteAhead(2));
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(maxInFlight.get() <= 2);
+  }
+
+  public void testAsyncProcessor_failureIsReported() throws Exception {
+    File inJar =
+        writeJar(List.of(createEntry("foo/A.class", "A"), createEntry("foo/B.class", "B")));
+    AsyncJarProcessor failing =
+        (e) ->
+            e.name.equals("foo/B.class")
+                ? CompletableFuture.failedFuture(new IOException("Cannot process B"))
+                : CompletableFuture.completedFuture(e);
+    try {
+      StandaloneJarProcessor.run(inJar, File.createTempFile("actual", "jar"), failing);
+      fail();
+    } catch (IOException expected) {
+      assertEquals("Cannot process B", expected.getMessage());
+    }
+  }
+
+  public void testDirectories_sameEntriesAsJars() throws Exception {
+    File inJar =
+        writeJar(
+            List.of(
+                createEntry("foo/", ""),
+                createEntry("foo/A.class", createClass("foo/A")),
+                createEntry("foo/B.class", createClass("foo/B")),
+                createEntry("foo/sub/", ""),
+                createEntry("foo/sub/C.txt", "C"),
+                createEntry("foo/Drop.class", createClass("foo/Drop"))));
+    File expectedJar = File.createTempFile("expected", "jar");
+    StandaloneJarProcessor.run(
+        inJar, expectedJar, new RenamingProcessor("v1", Set.of("bar/B.class")));
+
+    // Left by an earlier run, before keep rules excluded it
+    File outDir = Files.createTempDirectory("out").toFile();
+    Files.createDirectories(new File(outDir, "bar").toPath());
+    Files.write(new File(outDir, "bar/B.class").toPath(), createClass("bar/B"));
+    StandaloneJarProcessor.run(
+        inJar,
+        outDir,
+        new RenamingProcessor("v1", Set.of("bar/B.class")),
+        new StandaloneJarProcessor.Options().setThreads(4));
+    assertFalse(new File(outDir, "bar/B.class").exists());
+    assertFalse(new File(outDir, "bar/Drop.class").exists());
+    assertEquals(
+        "C", new String(Files.readAllBytes(new File(outDir, "bar/sub/C.txt").toPath()), UTF_8));
+    assertEquals(
+        ARBITRARY_INSTANT.toEpochMilli(), new File(outDir, "bar/A.class").lastModified());
+
+    // Reading the directory back gives the same jar
+    File actualJar = File.createTempFile("actual", "jar");
+    StandaloneJarProcessor.run(outDir, actualJar, (e) -> true);
+    assertTrue(
+        Arrays.equals(
+            Files.readAllBytes(expectedJar.toPath()), Files.readAllBytes(actualJar.toPath())));
+  }
+
+  public void testDirectories_entriesOutsideTheOutputAreRejected() throws Exception {
+    File inJar = writeJar(List.of(createEntry("../evil.txt", "evil")));
+    File outDir = Files.createTempDirectory("out").toFile();
+    try {
+      StandaloneJarProcessor.run(inJar, outDir, (e) -> true);
+      fail();
+    } catch (IOException expected) {
+    }
+    assertFalse(new File(outDir.getParentFile(), "evil.txt").exists());
+  }
+
+  private static StandaloneJarProcessor.Options incremental() {
+    return new StandaloneJarProcessor.Options().setIncremental(true);
+  }
+
+  /** Moves entries from foo/ to bar/ and drops Drop.class, counting the entries it processes. */
+  private static final class RenamingProcessor implements JarProcessor {
+    final AtomicInteger processed = new AtomicInteger();
+    final List<byte[]> unchanged = Collections.synchronizedList(new ArrayList<>());
+    boolean readsUnchanged;
+    private final String fingerprint;
+    private final Set<String> excludes;
+
+    RenamingProcessor(String fingerprint, Set<String> excludes) {
+      this.fingerprint = fingerprint;
+      this.excludes = excludes;
+    }
+
+    @Override
+    public boolean process(EntryStruct struct) {
+      processed.incrementAndGet();
+      struct.name = struct.name.replace("foo/", "bar/");
+      return !struct.name.endsWith("/Drop.class");
+    }
+
+    @Override
+    public Set<String> getExcludes() {
+      return excludes;
+    }
+
+    @Override
+    public byte[] getFingerprint() {
+      return fingerprint.getBytes(UTF_8);
+    }
+
+    @Override
+    public void processUnchanged(EntryStruct struct, String outputName) {
+      unchanged.add(struct.data);
+    }
+
+    @Override
+    public boolean readsUnchanged() {
+      return readsUnchanged;
+    }
+  }
+
+  /** Records the entries it gets, which should all be of its kind. */
+  private static final class KindProcessor implements JarProcessor {
+    private final EntryKind kind;
+    private final List<String> seen;
+
+    KindProcessor(EntryKind kind, List<String> seen) {
+      this.kind = kind;
+      this.seen = seen;
+    }
+
+    @Override
+    public boolean process(EntryStruct struct) {
+      seen.add(kind + " " + struct.name);
+      return true;
+    }
+
+    @Override
+    public Set<EntryKind> getKinds() {
+      return EnumSet.of(kind);
+    }
+  }
+
   private void assertJarTransformation(
       List<EntryStruct> inEntries, JarProcessor processor, List<EntryStruct> expectedEntries)
       throws Exception {
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2024 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tonicsystems.jarjar.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+
+public class ZipReaderTest extends TestCase {
+  public void testEntries_sameAsZipFile() throws Exception {
+    File file = File.createTempFile("test", ".zip");
+    byte[] random = new byte[100000];
+    new Random(0).nextBytes(random);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      out.setComment("comment");
+      writeEntry(out, "dir/", new byte[0], Instant.parse("2024-02-27T10:15:31Z").toEpochMilli());
+      writeEntry(out, "dir/text.txt", "Hello".getBytes(UTF_8), 0L);
+      writeEntry(out, "dir/\u00e9t\u00e9.bin", random, Instant.parse("2150-01-01T00:00:00Z"));
+      writeEntry(out, "empty.txt", new byte[0], Instant.parse("1970-01-02T00:00:00Z"));
+      storeEntry(out, "stored.bin", random);
+
+      ZipEntry ntfs = new ZipEntry("ntfs.txt");
+      ntfs.setExtra(ntfsExtra(Instant.parse("2001-09-09T01:46:40.123Z")));
+      out.putNextEntry(ntfs);
+      out.write("NTFS".getBytes(UTF_8));
+    }
+
+    try (ZipFile zip = new ZipFile(file);
+        ZipReader reader = new ZipReader(file)) {
+      List<? extends ZipEntry> expected = Collections.list(zip.entries());
+      List<ZipReader.Entry> actual = reader.entries();
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        ZipEntry expectedEntry = expected.get(i);
+        ZipReader.Entry actualEntry = actual.get(i);
+        String name = expectedEntry.getName();
+        assertEquals(name, actualEntry.name);
+        assertEquals(name, expectedEntry.isDirectory(), actualEntry.isDirectory());
+        assertEquals(name, expectedEntry.getMethod(), actualEntry.method);
+        assertEquals(name, expectedEntry.getCrc(), actualEntry.crc);
+        assertEquals(name, expectedEntry.getSize(), actualEntry.size);
+        assertEquals(name, expectedEntry.getCompressedSize(), actualEntry.compressedSize);
+        assertEquals(name, expectedEntry.getTime(), actualEntry.time);
+
+        byte[] data = zip.getInputStream(expectedEntry).readAllBytes();
+        assertTrue(name, Arrays.equals(data, reader.read(actualEntry)));
+        try (InputStream in = reader.openStream(actualEntry)) {
+          assertTrue(name, Arrays.equals(data, readSlowly(in)));
+        }
+        assertEquals(name, actualEntry.compressedSize, reader.readRaw(actualEntry).length);
+      }
+    }
+  }
+
+  public void testEntries_prependedData() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write("#!/bin/sh\nexec java -jar \"$0\"\n".getBytes(UTF_8));
+    try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+      writeEntry(out, "a.txt", "A".getBytes(UTF_8), 0L);
+      writeEntry(out, "b.txt", "B".getBytes(UTF_8), 0L);
+    }
+    File file = File.createTempFile("test", ".zip");
+    Files.write(file.toPath(), bytes.toByteArray());
+
+    try (ZipReader reader = new ZipReader(file)) {
+      assertEquals(2, reader.entries().size());
+      assertEquals("B", new String(reader.read(reader.entries().get(1)), UTF_8));
+    }
+  }
+
+  public void testOpen_notAZip() throws Exception {
+    File file = File.createTempFile("test", ".zip");
+    Files.write(file.toPath(), "Not a zip file".getBytes(UTF_8));
+    try {
+      new ZipReader(file).close();
+      fail();
+    } catch (ZipException expected) {
+    }
+  }
+
+  /** Reads a single byte at a time, then in chunks, to exercise both read methods. */
+  private static byte[] readSlowly(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < 10; i++) {
+      int b = in.read();
+      if (b < 0) {
+        return out.toByteArray();
+      }
+      out.write(b);
+    }
+    byte[] chunk = new byte[1000];
+    int n;
+    while ((n = in.read(chunk, 0, chunk.length)) >= 0) {
+      out.write(chunk, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static void writeEntry(ZipOutputStream out, String name, byte[] data, Instant time)
+      throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setLastModifiedTime(FileTime.from(time));
+    out.putNextEntry(entry);
+    out.write(data);
+  }
+
+  private static void writeEntry(ZipOutputStream out, String name, byte[] data, long time)
+      throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setTime(time);
+    out.putNextEntry(entry);
+    out.write(data);
+  }
+
+  private static void storeEntry(ZipOutputStream out, String name, byte[] data)
+      throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(data.length);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    entry.setCrc(crc.getValue());
+    out.putNextEntry(entry);
+    out.write(data);
+  }
+
+  /** Returns an NTFS extra field holding the modification time. */
+  private static byte[] ntfsExtra(Instant time) {
+    long windowsTime = (time.toEpochMilli() * 1000 + 11644473600000000L) * 10;
+    ByteBuffer extra = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+    extra.putShort((short) 0x000a).putShort((short) 32).putInt(0);
+    extra.putShort((short) 0x0001).putShort((short) 24);
+    extra.putLong(windowsTime).putLong(windowsTime).putLong(windowsTime);
+    return extra.array();
+  }
+
+  public ZipReaderTest(String name) {
+    super(name);
+  }
+}